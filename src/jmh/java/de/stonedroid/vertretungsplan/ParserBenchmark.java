@@ -0,0 +1,117 @@
+package de.stonedroid.vertretungsplan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the html parser and the tag stripper
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark
+{
+    // Number of paragraphs of the long message block
+    @Param({"200"})
+    public int messageParagraphs;
+
+    private String messageHtml;
+
+    @Setup
+    public void setup()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < messageParagraphs; i++)
+        {
+            builder.append("<tr><td class=\"info\" colspan=\"2\"><b>Hinweis ").append(i)
+                    .append(":</b>&nbsp;Die Klassen 5a&nbsp;-&nbsp;6d haben am Freitag")
+                    .append(" <i>keinen</i> Nachmittagsunterricht&#33;<br>Bitte &quot;Aushang&quot; beachten.")
+                    .append("</td></tr>\n");
+        }
+
+        messageHtml = builder.toString();
+    }
+
+    // Messages are served by the shared message store after the first iteration, like in a download round
+    @Benchmark
+    public ReplacementTable parseHtml(ExamplePage page)
+    {
+        return ReplacementTable.parseFromHtml(page.html);
+    }
+
+    @Benchmark
+    public ReplacementTable parseGeneratedPage(GeneratedPage page)
+    {
+        return ReplacementTable.parseFromHtml(page.html);
+    }
+
+    @Benchmark
+    public String removeHtmlTags()
+    {
+        return ReplacementTableParser.removeHtmlTags(messageHtml);
+    }
+
+    static String readResource(String name) throws IOException
+    {
+        try (Reader reader = new InputStreamReader(ParserBenchmark.class.getResourceAsStream(name),
+                StandardCharsets.UTF_8))
+        {
+            return Utils.readToEnd(reader);
+        }
+    }
+
+    // One of the pages downloaded by hand
+    @State(Scope.Benchmark)
+    public static class ExamplePage
+    {
+        @Param({"1", "2", "3"})
+        public int example;
+
+        private String html;
+
+        @Setup
+        public void setup() throws IOException
+        {
+            html = readResource(String.format("/example%d.html", example));
+        }
+    }
+
+    // Large synthetic page
+    @State(Scope.Benchmark)
+    public static class GeneratedPage
+    {
+        @Param({"10000"})
+        public int rows;
+
+        private String html;
+
+        @Setup
+        public void setup()
+        {
+            html = new PageGenerator.Builder()
+                    .setRows(rows)
+                    .setRunLength(2)
+                    .setMessageSize(20, 30)
+                    .create()
+                    .generate();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.stonedroid.vertretungsplan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the post-processing and filtering of large tables
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableBenchmark
+{
+    private static final String[] DAYS = {"Montag", "Dienstag", "Mittwoch", "Donnerstag", "Freitag"};
+    private static final String[] SUBJECTS = {"E2", "M1", "D3", "bio2", "ch1", "ph2", "sp1", "G1"};
+
+    // Number of generated replacements before optimize()
+    @Param({"10000"})
+    public int rows;
+
+    private ArrayList<Replacement> unoptimized;
+    private ReplacementTable table;
+    private Map<ReplacementFilter, Collection<String>> filter;
+    private Map<ReplacementFilter, Collection<String>> knownEntries;
+
+    @Setup
+    public void setup()
+    {
+        // Runs of up to 4 consecutive periods with equal content, like the server lists double periods
+        unoptimized = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++)
+        {
+            int group = i / 4;
+            unoptimized.add(new Replacement.Builder()
+                    .setDate(String.format("%d.6.", 22 + group % 5))
+                    .setDay(DAYS[group % 5])
+                    .setGrade(Integer.toString(5 + group % 8))
+                    .setPeriod(Integer.toString(1 + i % 4))
+                    .setSubject(SUBJECTS[group % SUBJECTS.length])
+                    .setRoom(Integer.toString(100 + group % 40))
+                    .setOldSubject(SUBJECTS[(group + 3) % SUBJECTS.length])
+                    .setText(group % 3 == 0 ? "fällt aus" : "---")
+                    .create());
+        }
+
+        table = newTable();
+        table.optimize();
+
+        // Typical filter of a student: own courses, known courses of the grade are checked only
+        filter = new HashMap<>();
+        filter.put(ReplacementFilter.SUBJECT, Arrays.asList("E2", "bio2", "ph2"));
+        knownEntries = new HashMap<>();
+        knownEntries.put(ReplacementFilter.SUBJECT, Arrays.asList(SUBJECTS));
+    }
+
+    private ReplacementTable newTable()
+    {
+        return new ReplacementTable(new ArrayList<>(unoptimized), new ArrayList<>(), new String[0], new String[0],
+                null, null);
+    }
+
+    @Benchmark
+    public ReplacementTable optimize()
+    {
+        ReplacementTable table = newTable();
+        table.optimize();
+        return table;
+    }
+
+    @Benchmark
+    public List<Replacement> getReplacementsWithFilter()
+    {
+        return table.getReplacements(filter);
+    }
+
+    @Benchmark
+    public List<Replacement> getReplacementsWithKnownEntries()
+    {
+        return table.getReplacements(filter, knownEntries);
+    }
+}
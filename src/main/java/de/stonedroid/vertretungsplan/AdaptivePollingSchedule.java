@@ -0,0 +1,171 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polling schedule which learns when the tables of a grade are usually updated.
+ * <p>
+ * Every detected change is recorded in a weekly histogram (half-hour slots) of the grade. Slots in which
+ * changes were seen often are polled with the minimum interval, quiet slots with up to the maximum interval.
+ * A long delay is cut short if a busier slot starts before it ends, so a learned window isn't missed.
+ * Directly after a change the minimum interval is used, because corrections often follow.
+ * Older observations fade out, so the schedule follows changing publication habits.
+ * As long as a grade has too few recorded changes, it is polled with the minimum interval.
+ */
+public class AdaptivePollingSchedule implements PollingSchedule
+{
+    // Width of a histogram slot
+    private static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int SLOTS_PER_DAY = (int) (TimeUnit.DAYS.toMillis(1) / SLOT_MILLIS);
+    private static final int SLOT_COUNT = 7 * SLOTS_PER_DAY;
+    // Weight of older observations after each new one
+    private static final double DECAY = 0.97;
+    // Changes which have to be seen before the schedule backs off
+    private static final int MIN_CHANGES = 3;
+
+    private final long minMillis;
+    private final long maxMillis;
+    private final TimeZone timeZone;
+
+    // Histograms by grade, guarded by this
+    private final HashMap<Grade, Histogram> histograms = new HashMap<>();
+
+    /**
+     * Creates an adaptive schedule using the default time zone
+     *
+     * @param minInterval Interval used during busy times
+     * @param maxInterval Interval used during quiet times
+     * @param unit Unit of both intervals
+     */
+    public AdaptivePollingSchedule(long minInterval, long maxInterval, TimeUnit unit)
+    {
+        this(minInterval, maxInterval, unit, TimeZone.getDefault());
+    }
+
+    /**
+     * Creates an adaptive schedule
+     *
+     * @param minInterval Interval used during busy times
+     * @param maxInterval Interval used during quiet times
+     * @param unit Unit of both intervals
+     * @param timeZone Time zone of the publication times, they are learned per local time of day
+     */
+    public AdaptivePollingSchedule(long minInterval, long maxInterval, TimeUnit unit, TimeZone timeZone)
+    {
+        if (minInterval <= 0 || maxInterval < minInterval)
+        {
+            throw new IllegalArgumentException("Intervals must be positive and minInterval <= maxInterval");
+        }
+
+        this.minMillis = Math.max(1, unit.toMillis(minInterval));
+        this.maxMillis = Math.max(minMillis, unit.toMillis(maxInterval));
+        this.timeZone = timeZone;
+    }
+
+    @Override
+    public synchronized long nextDelay(Grade grade, int plusWeeks, long timeMillis, boolean changed)
+    {
+        Histogram histogram = histograms.computeIfAbsent(grade, key -> new Histogram());
+        int slot = getSlot(timeMillis);
+
+        if (changed)
+        {
+            histogram.record(slot);
+            return minMillis;
+        }
+
+        if (histogram.changes < MIN_CHANGES)
+        {
+            return minMillis;
+        }
+
+        double activity = histogram.getActivity(slot);
+        long delay = getInterval(activity);
+
+        // Don't sleep past the start of a busier slot
+        long slotStart = timeMillis - Math.floorMod(getLocalMillis(timeMillis), SLOT_MILLIS);
+        for (long start = slotStart + SLOT_MILLIS; start < timeMillis + delay; start += SLOT_MILLIS)
+        {
+            slot = (slot + 1) % SLOT_COUNT;
+            if (histogram.getActivity(slot) > activity)
+            {
+                delay = Math.max(minMillis, start - timeMillis);
+                break;
+            }
+        }
+
+        return delay;
+    }
+
+    /**
+     * Returns the delay which would be used at the given time without a detected change
+     *
+     * @param grade Grade of the table
+     * @param timeMillis Time to look at
+     * @return Delay in milliseconds
+     */
+    public long getInterval(Grade grade, long timeMillis)
+    {
+        return nextDelay(grade, 0, timeMillis, false);
+    }
+
+    // Interpolates geometrically between both bounds (activity 1 = min, activity 0 = max)
+    private long getInterval(double activity)
+    {
+        return Math.max(minMillis, Math.round(maxMillis * Math.pow((double) minMillis / maxMillis, activity)));
+    }
+
+    // Index of the half-hour slot of the week, starting at monday 0:00 local time
+    private int getSlot(long timeMillis)
+    {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(timeMillis);
+        int day = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        return day * SLOTS_PER_DAY + (int) (minute * 60000L / SLOT_MILLIS);
+    }
+
+    // Time shifted into the configured time zone
+    private long getLocalMillis(long timeMillis)
+    {
+        return timeMillis + timeZone.getOffset(timeMillis);
+    }
+
+    // Weekly change histogram of one grade
+    private static final class Histogram
+    {
+        private final double[] weights = new double[SLOT_COUNT];
+        private double maxWeight;
+        private int changes;
+
+        void record(int slot)
+        {
+            maxWeight = 0;
+            for (int i = 0; i < weights.length; i++)
+            {
+                weights[i] *= DECAY;
+                maxWeight = Math.max(maxWeight, weights[i]);
+            }
+
+            weights[slot] += 1;
+            maxWeight = Math.max(maxWeight, weights[slot]);
+            changes++;
+        }
+
+        // Weight of the slot relative to the busiest slot, neighbours count half
+        double getActivity(int slot)
+        {
+            if (maxWeight == 0)
+            {
+                return 0;
+            }
+
+            double weight = Math.max(weights[slot], 0.5 * Math.max(
+                    weights[(slot + SLOT_COUNT - 1) % SLOT_COUNT], weights[(slot + 1) % SLOT_COUNT]));
+            return weight / maxWeight;
+        }
+    }
+}
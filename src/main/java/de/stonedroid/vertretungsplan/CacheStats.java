@@ -0,0 +1,122 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Snapshot of the statistics of a ReplacementTableCache
+ */
+public class CacheStats
+{
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+
+    // Only the cache creates statistics
+    CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+               long totalLoadTime, long evictionCount)
+    {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * Returns the number of requests which were served by the cache
+     * (including requests which waited for a load started by another request)
+     *
+     * @return Number of hits
+     */
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of requests which had to load the table
+     *
+     * @return Number of misses
+     */
+    public long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the ratio of hits to all requests
+     *
+     * @return Hit rate between 0 and 1 (1 if there were no requests)
+     */
+    public double getHitRate()
+    {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    /**
+     * Returns the number of successful loads
+     *
+     * @return Number of successful loads
+     */
+    public long getLoadSuccessCount()
+    {
+        return loadSuccessCount;
+    }
+
+    /**
+     * Returns the number of failed loads
+     *
+     * @return Number of failed loads
+     */
+    public long getLoadFailureCount()
+    {
+        return loadFailureCount;
+    }
+
+    /**
+     * Returns the time spent loading tables
+     *
+     * @return Total load time in nanoseconds
+     */
+    public long getTotalLoadTime()
+    {
+        return totalLoadTime;
+    }
+
+    /**
+     * Returns the average time of a load
+     *
+     * @return Average load time in nanoseconds (0 if nothing was loaded)
+     */
+    public double getAverageLoadTime()
+    {
+        long loads = loadSuccessCount + loadFailureCount;
+        return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    /**
+     * Returns the number of tables which were removed because the cache was full
+     *
+     * @return Number of evictions
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns a human-readable string containing all statistics
+     *
+     * @return Statistics
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("hits=%d, misses=%d, hitRate=%.2f, loads=%d, failures=%d, avgLoadTime=%.1fms, evictions=%d",
+                hitCount, missCount, getHitRate(), loadSuccessCount, loadFailureCount,
+                getAverageLoadTime() / 1e6, evictionCount);
+    }
+}
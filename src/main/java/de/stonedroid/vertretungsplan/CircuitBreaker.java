@@ -0,0 +1,103 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Intern circuit breaker of one host.
+ * <p>
+ * After a number of consecutive failed requests the breaker opens and all requests fail fast.
+ * Once the open duration has passed, exactly one request (the probe) is let through.
+ * If it succeeds the breaker closes, otherwise it opens again for the next open duration.
+ */
+final class CircuitBreaker
+{
+    // Default number of consecutive failures which open the breaker
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    // Default time the breaker stays open before the probe is sent
+    static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier ticker;
+
+    // Consecutive failures, guarded by this
+    private int failures;
+    // Time the breaker was opened or -1 if it is closed
+    private long openedAt = -1;
+    // Whether the probe is currently running
+    private boolean probing;
+
+    CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit)
+    {
+        this(failureThreshold, openDuration, unit, System::nanoTime);
+    }
+
+    // Constructor with exchangeable time source for junit testing
+    CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit, LongSupplier ticker)
+    {
+        if (failureThreshold < 1)
+        {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openDuration);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns whether a request may be sent. While the breaker is open, this returns true only once
+     * after the open duration has passed, the caller has to report the outcome of this probe.
+     *
+     * @return Whether the request may be sent
+     */
+    synchronized boolean tryAcquire()
+    {
+        if (openedAt == -1)
+        {
+            return true;
+        }
+
+        if (probing || ticker.getAsLong() - openedAt < openNanos)
+        {
+            return false;
+        }
+
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Returns whether the breaker is closed, i.e. requests are sent normally
+     *
+     * @return Whether the breaker is closed
+     */
+    synchronized boolean isClosed()
+    {
+        return openedAt == -1;
+    }
+
+    /**
+     * Reports that the host answered and closes the breaker
+     */
+    synchronized void onSuccess()
+    {
+        failures = 0;
+        openedAt = -1;
+        probing = false;
+    }
+
+    /**
+     * Reports that the host couldn't be reached and opens the breaker if there were too many failures
+     */
+    synchronized void onFailure()
+    {
+        failures++;
+        if (probing || failures >= failureThreshold)
+        {
+            openedAt = ticker.getAsLong();
+            probing = false;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Thrown without sending a request, because the host failed too often recently
+ */
+public class CircuitOpenException extends WebException
+{
+    /**
+     * Constructor with message parameter
+     *
+     * @param message Message which describes error
+     */
+    public CircuitOpenException(String message)
+    {
+        super(message);
+    }
+}
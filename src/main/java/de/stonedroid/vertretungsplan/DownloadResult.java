@@ -0,0 +1,104 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Result of a bulk download, which holds every downloaded ReplacementTable
+ * and every failure by grade and week offset
+ */
+public class DownloadResult
+{
+    // Grade -> (week offset -> table/failure)
+    private final Map<Grade, Map<Integer, ReplacementTable>> tables = new LinkedHashMap<>();
+    private final Map<Grade, Map<Integer, WebException>> failures = new LinkedHashMap<>();
+
+    // Only the downloader creates results
+    DownloadResult()
+    {
+    }
+
+    // Adds a successfully downloaded table
+    void addTable(Grade grade, int plusWeeks, ReplacementTable table)
+    {
+        tables.computeIfAbsent(grade, g -> new TreeMap<>()).put(plusWeeks, table);
+    }
+
+    // Adds a failed download
+    void addFailure(Grade grade, int plusWeeks, WebException failure)
+    {
+        failures.computeIfAbsent(grade, g -> new TreeMap<>()).put(plusWeeks, failure);
+    }
+
+    /**
+     * Returns the table of the grade for the week offset
+     *
+     * @param grade Grade of the table
+     * @param plusWeeks Week offset of the table
+     * @return Downloaded table or null if the download failed or wasn't requested
+     */
+    public ReplacementTable getTable(Grade grade, int plusWeeks)
+    {
+        Map<Integer, ReplacementTable> weeks = tables.get(grade);
+        return weeks != null ? weeks.get(plusWeeks) : null;
+    }
+
+    /**
+     * Returns all downloaded tables of the grade
+     *
+     * @param grade Grade of the tables
+     * @return Tables ordered by week offset (failed downloads are missing)
+     */
+    public List<ReplacementTable> getTables(Grade grade)
+    {
+        Map<Integer, ReplacementTable> weeks = tables.get(grade);
+        return weeks != null ? new ArrayList<>(weeks.values()) : Collections.emptyList();
+    }
+
+    /**
+     * Returns the reason why the download of the grade for the week offset failed
+     *
+     * @param grade Grade of the table
+     * @param plusWeeks Week offset of the table
+     * @return Exception which describes the failure or null if the download didn't fail
+     */
+    public WebException getFailure(Grade grade, int plusWeeks)
+    {
+        Map<Integer, WebException> weeks = failures.get(grade);
+        return weeks != null ? weeks.get(plusWeeks) : null;
+    }
+
+    /**
+     * Returns all downloaded tables
+     *
+     * @return Map of grade -> (week offset -> table)
+     */
+    public Map<Grade, Map<Integer, ReplacementTable>> getTables()
+    {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    /**
+     * Returns all failed downloads
+     *
+     * @return Map of grade -> (week offset -> failure)
+     */
+    public Map<Grade, Map<Integer, WebException>> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns whether all downloads were successful
+     *
+     * @return Whether no download failed
+     */
+    public boolean isSuccessful()
+    {
+        return failures.isEmpty();
+    }
+}
@@ -124,4 +124,15 @@ public class Grade implements Serializable
             return false;
         }
     }
+
+    /**
+     * Returns a hash code which is consistent with equals()
+     *
+     * @return hash code of this grade
+     */
+    @Override
+    public int hashCode()
+    {
+        return index;
+    }
 }
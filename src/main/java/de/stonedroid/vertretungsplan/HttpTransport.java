@@ -0,0 +1,68 @@
+package de.stonedroid.vertretungsplan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Transport used by the WebClient to execute http requests.
+ * Implement this interface to plug in another http library.
+ */
+public interface HttpTransport
+{
+    /**
+     * Executes a GET request
+     *
+     * @param url Url to request
+     * @param headers Request headers (name -> value)
+     * @return Response of the server, which has to be closed by the caller
+     * @throws IOException Request failed
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * Executes a GET request whose connect and read timeouts don't exceed the given limit.
+     * The WebClient uses it to keep requests within the deadline of its RetryPolicy.
+     * The default implementation ignores the limit.
+     *
+     * @param url Url to request
+     * @param headers Request headers (name -> value)
+     * @param timeoutMillis Upper bound of the connect and read timeouts in milliseconds (0 = no limit)
+     * @return Response of the server, which has to be closed by the caller
+     * @throws IOException Request failed
+     */
+    default Response get(String url, Map<String, String> headers, int timeoutMillis) throws IOException
+    {
+        return get(url, headers);
+    }
+
+    /**
+     * Response of a GET request
+     */
+    interface Response extends Closeable
+    {
+        /**
+         * Returns the http status code
+         *
+         * @return Status code (e.g. 200 or 304)
+         */
+        int getStatusCode() throws IOException;
+
+        /**
+         * Returns the value of a response header
+         *
+         * @param name Name of the header
+         * @return Header value or null if the header is missing
+         */
+        String getHeader(String name);
+
+        /**
+         * Returns the decoded (e.g. decompressed) response body
+         *
+         * @return Body of the response
+         * @throws IOException Body couldn't be opened
+         */
+        InputStream getBody() throws IOException;
+    }
+}
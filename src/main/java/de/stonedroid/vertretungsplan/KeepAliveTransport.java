@@ -0,0 +1,175 @@
+package de.stonedroid.vertretungsplan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Http transport which requests gzip compressed responses, uses timeouts and releases connections properly.
+ * <p>
+ * Connections are pooled by the keep-alive cache of the JDK, which is enabled by default ("http.keepAlive").
+ * This transport doesn't change that, it only makes sure every response body is read and closed (never
+ * disconnected), so the socket is handed back and reused by the next request to the same host.
+ * The pool size per host is controlled by the system property "http.maxConnections".
+ */
+public class KeepAliveTransport implements HttpTransport
+{
+    // Default timeouts in milliseconds
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 20000;
+
+    // Used for urls which aren't http(s)
+    private final HttpTransport fallback = new UrlConnectionTransport();
+
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile boolean gzip = true;
+
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException
+    {
+        return get(url, headers, 0);
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers, int timeoutMillis) throws IOException
+    {
+        URLConnection connection = new URL(url).openConnection();
+        if (!(connection instanceof HttpURLConnection))
+        {
+            return fallback.get(url, headers, timeoutMillis);
+        }
+
+        connection.setConnectTimeout(limit(connectTimeout, timeoutMillis));
+        connection.setReadTimeout(limit(readTimeout, timeoutMillis));
+        if (gzip)
+        {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet())
+        {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        return new KeepAliveResponse((HttpURLConnection) connection);
+    }
+
+    // Returns the smaller timeout, 0 means infinite for both
+    private static int limit(int timeout, int limit)
+    {
+        return timeout == 0 || (limit != 0 && limit < timeout) ? limit : timeout;
+    }
+
+    /**
+     * Returns the connect timeout
+     *
+     * @return Connect timeout in milliseconds
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the connect timeout
+     *
+     * @param connectTimeout Connect timeout in milliseconds (0 = infinite)
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Returns the read timeout
+     *
+     * @return Read timeout in milliseconds
+     */
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the read timeout
+     *
+     * @param readTimeout Read timeout in milliseconds (0 = infinite)
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns whether gzip compressed responses are requested
+     *
+     * @return Whether gzip is enabled
+     */
+    public boolean isGzip()
+    {
+        return gzip;
+    }
+
+    /**
+     * Sets whether gzip compressed responses are requested
+     *
+     * @param gzip Whether gzip is enabled
+     */
+    public void setGzip(boolean gzip)
+    {
+        this.gzip = gzip;
+    }
+
+    // Response which decompresses the body and releases the connection on close
+    private static final class KeepAliveResponse extends UrlConnectionTransport.ConnectionResponse
+    {
+        KeepAliveResponse(HttpURLConnection connection)
+        {
+            super(connection);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException
+        {
+            if (body == null)
+            {
+                InputStream raw = openRaw();
+                body = "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(raw) : raw;
+            }
+
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            // Closing the stream hands the socket back to the keep-alive cache
+            if (body != null)
+            {
+                body.close();
+                return;
+            }
+
+            // A response whose body was never opened (e.g. 304) still has to release the connection
+            InputStream raw = openRaw();
+            if (raw != null)
+            {
+                raw.close();
+            }
+        }
+
+        // Opens the input stream or the error stream depending on the status code
+        private InputStream openRaw() throws IOException
+        {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            return http.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? http.getErrorStream()
+                    : http.getInputStream();
+        }
+    }
+}
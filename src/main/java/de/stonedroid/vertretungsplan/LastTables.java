@@ -0,0 +1,93 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Intern store of the last table downloaded from each url.
+ * <p>
+ * The downloader returns the last table again if the server reports no changes, or if the server is
+ * unavailable (see ReplacementTable.isStale()). Urls contain the week, so only the most recently used
+ * tables of each grade are kept. The url of a removed table is passed to the eviction listener, so the
+ * validators of its last response can be forgotten as well.
+ */
+final class LastTables
+{
+    private final int maxPerGrade;
+    private final Consumer<String> evictionListener;
+    // Access ordered maps (url -> table) of each grade, guarded by this
+    private final HashMap<Grade, LinkedHashMap<String, ReplacementTable>> tables = new HashMap<>();
+
+    LastTables(int maxPerGrade, Consumer<String> evictionListener)
+    {
+        if (maxPerGrade < 1)
+        {
+            throw new IllegalArgumentException("maxPerGrade must be at least 1");
+        }
+
+        this.maxPerGrade = maxPerGrade;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Returns the last table of the url
+     *
+     * @param grade Grade of the table
+     * @param url Download url of the table
+     * @return Last table or null if there is none
+     */
+    synchronized ReplacementTable get(Grade grade, String url)
+    {
+        LinkedHashMap<String, ReplacementTable> gradeTables = tables.get(grade);
+        return gradeTables != null ? gradeTables.get(url) : null;
+    }
+
+    /**
+     * Stores the table as last table of the url and removes the least recently used table
+     * of the grade if there are too many
+     *
+     * @param grade Grade of the table
+     * @param url Download url of the table
+     * @param table Downloaded table
+     */
+    void put(Grade grade, String url, ReplacementTable table)
+    {
+        String evicted = null;
+        synchronized (this)
+        {
+            LinkedHashMap<String, ReplacementTable> gradeTables = tables.computeIfAbsent(grade,
+                    key -> new LinkedHashMap<>(16, 0.75f, true));
+            gradeTables.put(url, table);
+            if (gradeTables.size() > maxPerGrade)
+            {
+                Map.Entry<String, ReplacementTable> eldest = gradeTables.entrySet().iterator().next();
+                evicted = eldest.getKey();
+                gradeTables.remove(evicted);
+            }
+        }
+
+        // Notify outside of the lock
+        if (evicted != null)
+        {
+            evictionListener.accept(evicted);
+        }
+    }
+
+    /**
+     * Returns the number of stored tables of all grades
+     *
+     * @return Number of tables
+     */
+    synchronized int size()
+    {
+        int size = 0;
+        for (LinkedHashMap<String, ReplacementTable> gradeTables : tables.values())
+        {
+            size += gradeTables.size();
+        }
+
+        return size;
+    }
+}
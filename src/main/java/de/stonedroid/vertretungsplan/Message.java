@@ -10,6 +10,8 @@ public class Message implements Serializable
 {
     // Intern array which holds all information
     String[] data;
+    // Cached hash code of data (0 = not computed yet)
+    private transient int hash;
 
     // Private constructor for Builder class
     private Message(String[] data)
@@ -88,6 +90,25 @@ public class Message implements Serializable
         }
     }
 
+    /**
+     * Returns a hash code of the content, which is consistent with equals()
+     *
+     * @return Hash code of all data
+     */
+    @Override
+    public int hashCode()
+    {
+        // Data never changes after creation, so the hash can be cached
+        int h = hash;
+        if (h == 0)
+        {
+            h = Arrays.hashCode(data);
+            hash = h;
+        }
+
+        return h;
+    }
+
     /**
      * Builder class to easily build a Message object
      */
@@ -0,0 +1,181 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Intern store of parsed messages.
+ * <p>
+ * Most messages are school-wide announcements, which appear on the pages of all grades. The store maps
+ * the html of a message block and its date to the parsed Message, so the text of a block is only cleaned
+ * once and all tables of a download point to the same instance. Messages are immutable, so sharing is safe.
+ * The html isn't kept: a key consists of date, day, a 64 bit hash and the length of the html and its first
+ * and last characters, so the store only holds the parsed texts and short samples. The samples are compared
+ * on every hit, so a hash collision between different blocks isn't enough to return the wrong message.
+ * The least recently used messages are removed when the store is full.
+ */
+final class MessageStore
+{
+    // Store shared by all parsers
+    static final MessageStore SHARED = new MessageStore(4096);
+
+    // 64 bit FNV-1a
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private final int maxSize;
+    private final ToLongFunction<CharSequence> hashFunction;
+    // Access ordered map, so the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, Message> messages;
+
+    // Statistics, guarded by this
+    private long hitCount;
+    private long missCount;
+
+    MessageStore(int maxSize)
+    {
+        this(maxSize, MessageStore::hash);
+    }
+
+    // Constructor with exchangeable hash function for junit testing
+    MessageStore(int maxSize, ToLongFunction<CharSequence> hashFunction)
+    {
+        this.maxSize = maxSize;
+        this.hashFunction = hashFunction;
+        this.messages = new LinkedHashMap<Key, Message>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Message> eldest)
+            {
+                return size() > MessageStore.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the message of the html block or creates it if it hasn't been seen yet
+     *
+     * @param date Date of the message
+     * @param day Day of the message
+     * @param html Raw html of the message block, it isn't stored
+     * @param textParser Extracts the text of the message from the html
+     * @return Shared message instance
+     */
+    Message get(String date, String day, CharSequence html, Function<CharSequence, String> textParser)
+    {
+        Key lookup = new Key(date, day, html, hashFunction.applyAsLong(html));
+        synchronized (this)
+        {
+            Message message = messages.get(lookup);
+            if (message != null)
+            {
+                hitCount++;
+                return message;
+            }
+
+            missCount++;
+        }
+
+        // Parse outside of the lock, a concurrent parser of the same block creates an equal message
+        Message message = new Message.Builder()
+                .setText(textParser.apply(html))
+                .setDay(day)
+                .setDate(date)
+                .create();
+
+        synchronized (this)
+        {
+            Message previous = messages.putIfAbsent(lookup, message);
+            return previous != null ? previous : message;
+        }
+    }
+
+    /**
+     * Returns the number of stored messages
+     *
+     * @return Size of the store
+     */
+    synchronized int size()
+    {
+        return messages.size();
+    }
+
+    /**
+     * Returns how often a stored message could be reused
+     *
+     * @return Number of hits
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns how often a message had to be parsed
+     *
+     * @return Number of misses
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    // Hashes the html with 64 bit FNV-1a
+    private static long hash(CharSequence html)
+    {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < html.length(); i++)
+        {
+            h = (h ^ html.charAt(i)) * FNV_PRIME;
+        }
+
+        return h;
+    }
+
+    // Date, day and a fingerprint of the html of a message block
+    private static final class Key
+    {
+        // Number of characters kept from the start and from the end of the html
+        private static final int SAMPLE_LENGTH = 32;
+
+        private final String date;
+        private final String day;
+        private final long htmlHash;
+        private final int htmlLength;
+        // Start and end of the html (or all of it, if it is short)
+        private final String sample;
+
+        Key(String date, String day, CharSequence html, long htmlHash)
+        {
+            this.date = date;
+            this.day = day;
+            this.htmlHash = htmlHash;
+            htmlLength = html.length();
+            sample = htmlLength <= 2 * SAMPLE_LENGTH ? html.toString() : new StringBuilder(2 * SAMPLE_LENGTH)
+                    .append(html, 0, SAMPLE_LENGTH)
+                    .append(html, htmlLength - SAMPLE_LENGTH, htmlLength)
+                    .toString();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return htmlHash == other.htmlHash && htmlLength == other.htmlLength
+                    && date.equals(other.date) && day.equals(other.day) && sample.equals(other.sample);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (htmlHash ^ (htmlHash >>> 32)) * 31 + date.hashCode();
+        }
+    }
+}
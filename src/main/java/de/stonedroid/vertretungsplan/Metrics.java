@@ -0,0 +1,72 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Receives measurements of the downloader, parser and filters, e.g. to forward them to a monitoring system.
+ * All methods do nothing by default, so an implementation only overrides what it needs.
+ * Methods are called on the thread doing the work and have to be fast and thread-safe.
+ *
+ * @see ReplacementTable#setMetrics(Metrics)
+ */
+public interface Metrics
+{
+    // Metrics which ignore everything, used by default
+    Metrics NONE = new Metrics()
+    {
+    };
+
+    /**
+     * Called after a http request has been completed or has failed
+     *
+     * @param url Requested url
+     * @param statusCode Http status code or -1 if no response was received
+     * @param bytes Number of body bytes read (after decompression)
+     * @param latencyNanos Time until the response headers were received
+     * @param durationNanos Time until the body was read completely, includes parsing a streamed body
+     */
+    default void recordHttpRequest(String url, int statusCode, long bytes, long latencyNanos, long durationNanos)
+    {
+    }
+
+    /**
+     * Called after the background check of an unavailable server has failed.
+     * The last table of the url has been returned meanwhile (see ReplacementTable.isStale()).
+     *
+     * @param url Requested url
+     * @param failure Reason of the failure
+     */
+    default void recordRevalidationFailure(String url, WebException failure)
+    {
+    }
+
+    /**
+     * Called after a page has been parsed
+     *
+     * @param durationNanos Parse time, includes waiting for the body if the page was parsed while downloading
+     * @param rows Number of replacement rows (before optimization)
+     * @param messages Number of messages
+     */
+    default void recordParse(long durationNanos, int rows, int messages)
+    {
+    }
+
+    /**
+     * Called after double replacements of a table have been merged
+     *
+     * @param rowsBefore Number of replacements before
+     * @param rowsAfter Number of replacements after the merge
+     */
+    default void recordOptimize(int rowsBefore, int rowsAfter)
+    {
+    }
+
+    /**
+     * Called after replacements of a table have been filtered
+     *
+     * @param durationNanos Filter time
+     * @param rows Number of replacements of the table
+     * @param matches Number of returned replacements
+     */
+    default void recordFilter(long durationNanos, int rows, int matches)
+    {
+    }
+}
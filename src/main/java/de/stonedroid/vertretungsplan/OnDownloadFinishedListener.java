@@ -7,4 +7,15 @@ public interface OnDownloadFinishedListener
 {
     void onFinished(ReplacementTable table);
     void onFailed(String message);
+
+    /**
+     * Called with the exception which caused the download to fail.
+     * By default it forwards a generic message to onFailed(String).
+     *
+     * @param exception Reason of the failure
+     */
+    default void onFailed(WebException exception)
+    {
+        onFailed("Couldn't download replacement table");
+    }
 }
@@ -0,0 +1,29 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Listener for changes detected by a ReplacementTableWatcher
+ */
+public interface OnTableChangedListener
+{
+    /**
+     * Called when a watched table differs from its previous snapshot
+     *
+     * @param grade Grade of the table
+     * @param plusWeeks Week offset of the table
+     * @param table New snapshot of the table
+     * @param diff Differences between the previous and the new snapshot
+     */
+    void onChanged(Grade grade, int plusWeeks, ReplacementTable table, TableDiff diff);
+
+    /**
+     * Called when a watched table couldn't be downloaded. Watching continues anyway.
+     * By default failures are ignored.
+     *
+     * @param grade Grade of the table
+     * @param plusWeeks Week offset of the table
+     * @param exception Reason of the failure
+     */
+    default void onFailed(Grade grade, int plusWeeks, WebException exception)
+    {
+    }
+}
@@ -0,0 +1,38 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long a ReplacementTableWatcher waits between two polls of a table
+ */
+public interface PollingSchedule
+{
+    /**
+     * Called before the first poll and after every poll of a table
+     *
+     * @param grade Grade of the polled table
+     * @param plusWeeks Week offset of the polled table
+     * @param timeMillis Current time (System.currentTimeMillis())
+     * @param changed Whether the last poll detected a change (always false before the first poll)
+     * @return Delay until the next poll in milliseconds
+     */
+    long nextDelay(Grade grade, int plusWeeks, long timeMillis, boolean changed);
+
+    /**
+     * Returns a schedule which always waits the same time
+     *
+     * @param interval Time between two polls
+     * @param unit Unit of interval
+     * @return Fixed schedule
+     */
+    static PollingSchedule fixed(long interval, TimeUnit unit)
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+
+        long millis = Math.max(1, unit.toMillis(interval));
+        return (grade, plusWeeks, timeMillis, changed) -> millis;
+    }
+}
@@ -1,5 +1,7 @@
 package de.stonedroid.vertretungsplan;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 
@@ -8,8 +10,17 @@ import java.util.Arrays;
  */
 public class Replacement implements Serializable
 {
+    // Implicit UID of the first release, keeps serialized replacements readable
+    private static final long serialVersionUID = 8272673647221952056L;
+
     // Intern data array containing all information
     String[] data;
+    // Cached hash code of data (0 = not computed yet)
+    private transient int hash;
+
+    // Parsed period, used by the merge pass and range queries (not serialized, see readObject())
+    private transient int periodStart;
+    private transient int periodEnd;
 
     // Private constructor for Builder.create()
     private Replacement(String[] data)
@@ -17,6 +28,21 @@ public class Replacement implements Serializable
         // Always clone the array, so we don't end up modifying
         // the original and also the only address copied one.
         this.data = data.clone();
+        parsePeriod();
+    }
+
+    // Parses the period, data built by fromData() might be shorter than usual
+    private void parsePeriod()
+    {
+        int period = data.length > 3 && data[3] != null ? Utils.parsePeriod(data[3]) : -1;
+        periodStart = period != -1 ? period >>> 16 : -1;
+        periodEnd = period != -1 ? period & 0xFFFF : -1;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        parsePeriod();
     }
 
     /**
@@ -69,6 +95,26 @@ public class Replacement implements Serializable
         return data[3];
     }
 
+    /**
+     * Returns the first period of replacement (e.g. 3 for "3 - 4")
+     *
+     * @return first period or -1 if the period isn't parsable
+     */
+    public int getPeriodStart()
+    {
+        return periodStart;
+    }
+
+    /**
+     * Returns the last period of replacement (e.g. 4 for "3 - 4")
+     *
+     * @return last period or -1 if the period isn't parsable
+     */
+    public int getPeriodEnd()
+    {
+        return periodEnd;
+    }
+
     /**
      * Returns subject of replacement
      *
@@ -152,6 +198,25 @@ public class Replacement implements Serializable
         }
     }
 
+    /**
+     * Returns a hash code of the content, which is consistent with equals()
+     *
+     * @return Hash code of all data
+     */
+    @Override
+    public int hashCode()
+    {
+        // Data never changes after creation, so the hash can be cached
+        int h = hash;
+        if (h == 0)
+        {
+            h = Arrays.hashCode(data);
+            hash = h;
+        }
+
+        return h;
+    }
+
     /**
      * Builder class to easily build an Replacement object
      */
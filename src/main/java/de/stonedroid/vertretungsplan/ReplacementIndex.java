@@ -0,0 +1,98 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Intern inverted index of the replacements of one table.
+ * Every ReplacementFilter column maps its values to the set of rows containing them.
+ */
+final class ReplacementIndex
+{
+    private final int size;
+    // Value -> rows of each column
+    private final EnumMap<ReplacementFilter, Map<String, BitSet>> columns = new EnumMap<>(ReplacementFilter.class);
+
+    ReplacementIndex(List<Replacement> replacements)
+    {
+        size = replacements.size();
+        ReplacementFilter[] filters = ReplacementFilter.values();
+
+        for (ReplacementFilter column : filters)
+        {
+            columns.put(column, new HashMap<>());
+        }
+
+        for (int row = 0; row < size; row++)
+        {
+            String[] data = replacements.get(row).data;
+            for (int column = 0; column < filters.length && column < data.length; column++)
+            {
+                columns.get(filters[column]).computeIfAbsent(data[column], value -> new BitSet(size)).set(row);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of indexed rows
+     *
+     * @return Number of rows
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the rows whose value in the column is one of the given values
+     *
+     * @param column Column to look at
+     * @param values Accepted values
+     * @return New set of matching rows
+     */
+    BitSet matching(ReplacementFilter column, Collection<String> values)
+    {
+        BitSet rows = new BitSet(size);
+        Map<String, BitSet> index = columns.get(column);
+
+        for (String value : values)
+        {
+            BitSet valueRows = index.get(value);
+            if (valueRows != null)
+            {
+                rows.or(valueRows);
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Returns the rows whose value in the column is none of the given values
+     *
+     * @param column Column to look at
+     * @param values Rejected values
+     * @return New set of not matching rows
+     */
+    BitSet notMatching(ReplacementFilter column, Collection<String> values)
+    {
+        BitSet rows = matching(column, values);
+        rows.flip(0, size);
+        return rows;
+    }
+
+    /**
+     * Returns the number of different values in the column
+     *
+     * @param column Column to look at
+     * @return Number of distinct values
+     */
+    int distinctValues(ReplacementFilter column)
+    {
+        return columns.get(column).size();
+    }
+}
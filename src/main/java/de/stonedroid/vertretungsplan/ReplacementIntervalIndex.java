@@ -0,0 +1,130 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Intern index of the replacements of one table by date and period.
+ * The rows are sorted by epoch day and first period, so the rows of a date range are found with a
+ * binary search and only the rows of those days which start before the end of the period range are checked.
+ * Rows without a parsable date aren't indexed.
+ */
+final class ReplacementIntervalIndex
+{
+    private final int size;
+    // Indexed rows sorted by (epochDay, periodStart) and their values in the same order
+    private final int[] rows;
+    private final long[] days;
+    private final int[] starts;
+    private final int[] ends;
+
+    ReplacementIntervalIndex(List<Replacement> replacements, ToLongFunction<Replacement> epochDays)
+    {
+        size = replacements.size();
+        long[] epochDayOfRow = new long[size];
+        Integer[] sorted = new Integer[size];
+        int count = 0;
+        for (int row = 0; row < size; row++)
+        {
+            epochDayOfRow[row] = epochDays.applyAsLong(replacements.get(row));
+            if (epochDayOfRow[row] != Long.MIN_VALUE)
+            {
+                sorted[count++] = row;
+            }
+        }
+
+        Arrays.sort(sorted, 0, count, Comparator
+                .<Integer>comparingLong(row -> epochDayOfRow[row])
+                .thenComparingInt(row -> replacements.get(row).getPeriodStart()));
+
+        rows = new int[count];
+        days = new long[count];
+        starts = new int[count];
+        ends = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            Replacement replacement = replacements.get(sorted[i]);
+            rows[i] = sorted[i];
+            days[i] = epochDayOfRow[sorted[i]];
+            starts[i] = replacement.getPeriodStart();
+            ends[i] = replacement.getPeriodEnd();
+        }
+    }
+
+    /**
+     * Returns the rows within the date range
+     *
+     * @param fromDay First epoch day (inclusive)
+     * @param toDay Last epoch day (inclusive)
+     * @return New set of matching rows
+     */
+    BitSet between(long fromDay, long toDay)
+    {
+        BitSet result = new BitSet(size);
+        for (int i = firstIndexOf(fromDay, Integer.MIN_VALUE); i < days.length && days[i] <= toDay; i++)
+        {
+            result.set(rows[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the rows within the date range whose periods overlap the period range.
+     * Rows without a parsable period don't match.
+     *
+     * @param fromDay First epoch day (inclusive)
+     * @param toDay Last epoch day (inclusive)
+     * @param fromPeriod First period (inclusive)
+     * @param toPeriod Last period (inclusive)
+     * @return New set of matching rows
+     */
+    BitSet between(long fromDay, long toDay, int fromPeriod, int toPeriod)
+    {
+        BitSet result = new BitSet(size);
+        int i = firstIndexOf(fromDay, 0);
+
+        while (i < days.length && days[i] <= toDay)
+        {
+            long day = days[i];
+            // Rows of this day starting after the period range can't overlap it
+            int end = firstIndexOf(day, Math.min(toPeriod, Integer.MAX_VALUE - 1) + 1);
+            for (; i < end; i++)
+            {
+                if (starts[i] != -1 && ends[i] >= fromPeriod)
+                {
+                    result.set(rows[i]);
+                }
+            }
+
+            // Continue with the next day
+            i = firstIndexOf(day + 1, Integer.MIN_VALUE);
+        }
+
+        return result;
+    }
+
+    // Returns the first position whose (day, start) isn't less than the given one
+    private int firstIndexOf(long day, int start)
+    {
+        int low = 0;
+        int high = days.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (days[middle] < day || (days[middle] == day && starts[middle] < start))
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,174 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Filter map compiled into a reusable predicate.
+ * <p>
+ * A query behaves exactly like ReplacementTable.getReplacements(filter, knownEntries), but the filter maps are
+ * only interpreted once: accepted values are copied into hash sets, unconstrained columns are dropped and,
+ * if there are no known entries, the most selective columns are checked first.
+ * Queries are immutable and can be used by multiple threads.
+ */
+public final class ReplacementQuery implements Predicate<Replacement>
+{
+    // Checks in the order they are applied
+    private final Step[] steps;
+
+    private ReplacementQuery(Step[] steps)
+    {
+        this.steps = steps;
+    }
+
+    /**
+     * Compiles the filter into a query
+     *
+     * @param filter Filter map used to determine if replacement should be returned
+     * @return Compiled query
+     */
+    public static ReplacementQuery compile(Map<ReplacementFilter, Collection<String>> filter)
+    {
+        return compile(filter, null);
+    }
+
+    /**
+     * Compiles the filter and the known entries into a query
+     *
+     * @param filter Filter map used to determine if replacement should be returned, can be null
+     * @param knownEntries Known values per column, replacements with unknown values are always returned, can be null
+     * @return Compiled query
+     */
+    public static ReplacementQuery compile(Map<ReplacementFilter, Collection<String>> filter,
+                                           Map<ReplacementFilter, Collection<String>> knownEntries)
+    {
+        ArrayList<Step> steps = new ArrayList<>();
+
+        for (ReplacementFilter key : ReplacementFilter.values())
+        {
+            Collection<String> entries = knownEntries != null ? knownEntries.get(key) : null;
+            Collection<String> filterValues = filter != null ? filter.get(key) : null;
+            if (entries != null || filterValues != null)
+            {
+                steps.add(new Step(key.ordinal(),
+                        entries != null ? new HashSet<>(entries) : null,
+                        filterValues != null ? new HashSet<>(filterValues) : null));
+            }
+        }
+
+        // Without known entries the checks are independent of each other, so the order can be changed.
+        // Columns with fewer accepted values reject more replacements, so they are checked first.
+        if (knownEntries == null || knownEntries.isEmpty())
+        {
+            steps.sort(Comparator.comparingInt(step -> step.accepted.size()));
+        }
+
+        return new ReplacementQuery(steps.toArray(new Step[0]));
+    }
+
+    /**
+     * Returns whether the replacement meets all criteria of the query
+     *
+     * @param replacement Replacement to check
+     * @return Whether the replacement would be returned by the query
+     */
+    @Override
+    public boolean test(Replacement replacement)
+    {
+        String[] data = replacement.data;
+
+        for (Step step : steps)
+        {
+            String dataChunk = data[step.column];
+            // Unknown data won't be checked by the filter and goes through
+            if (step.known != null && !step.known.contains(dataChunk))
+            {
+                return true;
+            }
+
+            if (step.accepted != null && !step.accepted.contains(dataChunk))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns all replacements of the table which meet the criteria of the query
+     *
+     * @param table Table to filter
+     * @return Matching replacements in table order
+     */
+    public List<Replacement> filter(ReplacementTable table)
+    {
+        ArrayList<Replacement> filtered = new ArrayList<>();
+        for (Replacement replacement : table.getReplacementList())
+        {
+            if (test(replacement))
+            {
+                filtered.add(replacement);
+            }
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Returns all replacements of all tables which meet the criteria of the query
+     *
+     * @param tables Tables to filter
+     * @return Matching replacements in table order
+     */
+    public List<Replacement> filter(Collection<ReplacementTable> tables)
+    {
+        ArrayList<Replacement> filtered = new ArrayList<>();
+        for (ReplacementTable table : tables)
+        {
+            for (Replacement replacement : table.getReplacementList())
+            {
+                if (test(replacement))
+                {
+                    filtered.add(replacement);
+                }
+            }
+        }
+
+        return filtered;
+    }
+
+    /**
+     * Returns a stream of all replacements of the tables which meet the criteria of the query
+     *
+     * @param tables Stream of tables to filter
+     * @return Stream of matching replacements
+     */
+    public Stream<Replacement> filter(Stream<ReplacementTable> tables)
+    {
+        return tables.flatMap(table -> table.getReplacementList().stream()).filter(this);
+    }
+
+    // Check of one column
+    private static final class Step
+    {
+        private final int column;
+        // Known values (null = no known entries for this column)
+        private final HashSet<String> known;
+        // Accepted values (null = column isn't filtered)
+        private final HashSet<String> accepted;
+
+        Step(int column, HashSet<String> known, HashSet<String> accepted)
+        {
+            this.column = column;
+            this.known = known;
+            this.accepted = accepted;
+        }
+    }
+}
@@ -1,7 +1,18 @@
 package de.stonedroid.vertretungsplan;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Holds Messages and Replacements for the chosen grade
@@ -11,6 +22,15 @@ public class ReplacementTable implements Serializable
     // URL used to scrape off replacements and messages
     private static final String DOWNLOAD_URL = "http://mpg-vertretungsplan.de/w/%s/w000%s.htm";
 
+    // Shared client, which remembers the validators (ETag/Last-Modified) of every url
+    private static final WebClient client = new WebClient();
+    // Number of weeks of each grade whose last table is kept
+    private static final int LAST_TABLES_PER_GRADE = 4;
+    // Last table downloaded from each url, returned again if the server reports no changes
+    private static final LastTables lastTables = new LastTables(LAST_TABLES_PER_GRADE, client::forgetValidators);
+    // Receives measurements of parsing, merging and filtering
+    private static volatile Metrics metrics = Metrics.NONE;
+
     // Contain their generic's collection
     private ArrayList<Replacement> replacements;
     private ArrayList<Message> messages;
@@ -22,6 +42,18 @@ public class ReplacementTable implements Serializable
     private String[] days;
 
     private Calendar downloadDate;
+    // Whether this is the last table of an unavailable server
+    private boolean stale;
+
+    // Raw page of a lazy table until its replacements and messages are parsed (null = parsed)
+    private transient volatile String html;
+
+    // Inverted index of the replacements, built on first filter query
+    private transient volatile ReplacementIndex index;
+    // Date and period index of the replacements, built on first range query
+    private transient volatile ReplacementIntervalIndex intervalIndex;
+    // Epoch day of each date of the replacements, computed relative to the download date on first use
+    private transient volatile Map<String, Long> epochDays;
 
     // Intern "constructor" for junit testing
     static ReplacementTable parseFromHtml(String html)
@@ -37,6 +69,19 @@ public class ReplacementTable implements Serializable
         }
     }
 
+    // Intern "constructor" of a lazy table for junit testing
+    static ReplacementTable parseFromHtmlLazy(String html)
+    {
+        try
+        {
+            return new ReplacementTable(html, parseSections(html, null), null, null);
+        }
+        catch (WebException e)
+        {
+            return null;
+        }
+    }
+
     /**
      * Downloads the ReplacementTable for the chosen grade for the current week asynchronously.
      * After the download is finished, the table is passed to the listener and is ready to be used.
@@ -59,19 +104,169 @@ public class ReplacementTable implements Serializable
      */
     public static void downloadTableAsync(Grade grade, int plusWeeks, OnDownloadFinishedListener listener)
     {
-        new Thread(() ->
+        downloadTableAsync(grade, plusWeeks).whenComplete((table, throwable) ->
         {
-            try
+            // Pass the table or the failure to the listener
+            if (throwable == null)
             {
-                // Download replacement table and pass it to the listener
-                ReplacementTable table = downloadTable(grade, plusWeeks);
                 listener.onFinished(table);
             }
-            catch (WebException e)
+            else
             {
-                listener.onFailed("Couldn't download replacement table");
+                listener.onFailed(toWebException(throwable));
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Downloads the ReplacementTable for the chosen grade for the current week asynchronously
+     * on the shared executor (see setExecutor()).
+     *
+     * @param grade The grade decides which table is going to be downloaded
+     * @return Future which completes with the table or with a WebException
+     */
+    public static CompletableFuture<ReplacementTable> downloadTableAsync(Grade grade)
+    {
+        return downloadTableAsync(grade, 0);
+    }
+
+    /**
+     * Downloads the ReplacementTable (with week offset) for the chosen grade asynchronously
+     * on the shared executor (see setExecutor()).
+     *
+     * @param grade The grade decides which table is going to be downloaded
+     * @param plusWeeks Week offset (default is 0)
+     * @return Future which completes with the table or with a WebException
+     */
+    public static CompletableFuture<ReplacementTable> downloadTableAsync(Grade grade, int plusWeeks)
+    {
+        CompletableFuture<ReplacementTable> future = new CompletableFuture<>();
+        try
+        {
+            SharedExecutor.get().execute(() ->
+            {
+                try
+                {
+                    future.complete(downloadTable(grade, plusWeeks));
+                }
+                catch (Throwable t)
+                {
+                    future.completeExceptionally(t);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(new WebException("Couldn't schedule download", e));
+        }
+
+        return future;
+    }
+
+    /**
+     * Sets the executor which runs all asynchronous downloads. By default virtual threads are used
+     * if the platform supports them, otherwise a bounded pool of daemon threads.
+     *
+     * @param executor New executor or null to restore the default one
+     */
+    public static void setExecutor(Executor executor)
+    {
+        SharedExecutor.set(executor);
+    }
+
+    /**
+     * Returns the executor which runs all asynchronous downloads
+     *
+     * @return Shared executor
+     */
+    public static Executor getExecutor()
+    {
+        return SharedExecutor.get();
+    }
+
+    /**
+     * Sets the transport which executes all http requests of the downloader.
+     * By default a KeepAliveTransport is used.
+     *
+     * @param transport New transport
+     */
+    public static void setTransport(HttpTransport transport)
+    {
+        if (transport == null)
+        {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+
+        client.setTransport(transport);
+    }
+
+    /**
+     * Returns the transport which executes all http requests of the downloader
+     *
+     * @return Current transport
+     */
+    public static HttpTransport getTransport()
+    {
+        return client.getTransport();
+    }
+
+    /**
+     * Sets how the downloader retries failed requests and hedges slow ones.
+     * By default RetryPolicy.DEFAULT is used.
+     *
+     * @param retryPolicy New retry policy or null to send every request only once
+     */
+    public static void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        client.setRetryPolicy(retryPolicy != null ? retryPolicy : RetryPolicy.NONE);
+    }
+
+    /**
+     * Returns the retry policy of the downloader
+     *
+     * @return Current retry policy
+     */
+    public static RetryPolicy getRetryPolicy()
+    {
+        return client.getRetryPolicy();
+    }
+
+    /**
+     * Sets when the downloader stops sending requests to an unavailable server. After failureThreshold
+     * consecutive failed downloads, downloadTable() returns the last table of the url (see isStale())
+     * or fails immediately if there is none. After openDuration one request checks the server again,
+     * in the background if there is a last table. By default 5 failures open the breaker for 30 seconds.
+     *
+     * @param failureThreshold Number of consecutive failed downloads which mark the server as unavailable
+     * @param openDuration Time until the server is checked again
+     * @param unit Unit of openDuration
+     */
+    public static void setCircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit)
+    {
+        client.setCircuitBreaker(failureThreshold, openDuration, unit);
+    }
+
+    /**
+     * Sets the metrics which receive measurements of all downloads, parsing, merging and filtering.
+     * By default nothing is measured.
+     *
+     * @param newMetrics New metrics or null to disable measuring
+     */
+    public static void setMetrics(Metrics newMetrics)
+    {
+        Metrics current = newMetrics != null ? newMetrics : Metrics.NONE;
+        metrics = current;
+        client.setMetrics(current);
+    }
+
+    /**
+     * Returns the metrics which receive all measurements
+     *
+     * @return Current metrics
+     */
+    public static Metrics getMetrics()
+    {
+        return metrics;
     }
 
     /**
@@ -97,246 +292,392 @@ public class ReplacementTable implements Serializable
      */
     public static ReplacementTable downloadTable(Grade grade, int plusWeeks) throws WebException
     {
-        String html = downloadHtml(grade, plusWeeks);
-        Object[] result = parseHtml(html, grade);
-        return new ReplacementTable(result, grade, Calendar.getInstance());
+        return downloadTable(grade, plusWeeks, false);
     }
 
-    // Downloads html based on parameters
-    private static String downloadHtml(Grade grade, int plusWeeks) throws WebException
+    /**
+     * Downloads the ReplacementTable (with week offset) for the chosen grade. A lazy table only reads the
+     * dates and days of the page right away. The replacements and messages are parsed and merged on the
+     * first access of them, so callers which only need getDates() or getDays() don't pay for it.
+     * Rows which can't be parsed cause an IllegalStateException on that first access instead of a
+     * WebException here.
+     *
+     * @param grade The grade decides which table is going to be downloaded
+     * @param plusWeeks Week offset (default is 0)
+     * @param lazy Whether replacements and messages are parsed on first access
+     * @return ReplacementTable with information for the grade
+     * @throws WebException Failed to download ReplacementTable
+     */
+    public static ReplacementTable downloadTable(Grade grade, int plusWeeks, boolean lazy) throws WebException
     {
-        WebClient client = new WebClient();
-        // Preparing arguments to fill the '%s's in DOWNLOAD_URL
-        // Get week from calendar
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.WEEK_OF_YEAR, plusWeeks);
-        String week = String.valueOf(calendar.get(Calendar.WEEK_OF_YEAR));
-        // If week has length = 1 -> prefix a '0' otherwise our WebClient will return 404
-        if (week.length() == 1)
+        String url = getDownloadUrl(grade, plusWeeks);
+        // Only ask the server for changes if we still have the last table of this url
+        ReplacementTable previous = lastTables.get(grade, url);
+        CircuitBreaker breaker = client.getCircuitBreaker(url);
+        boolean probe = !breaker.isClosed();
+
+        if (!breaker.tryAcquire())
         {
-            week = "0" + week;
-        }
+            // The server failed too often, don't wait for it and return the last table instead
+            if (previous != null)
+            {
+                return previous.toStale();
+            }
 
-        // Get grade webCode from grade object
-        String webCode = grade.getWebCode();
-        // Download html with formatted url (using the two arguments just created)
-        return client.downloadString(String.format(DOWNLOAD_URL, week, webCode));
-    }
+            throw new CircuitOpenException("Server is unavailable, no previous table of URL: " + url);
+        }
 
-    // Parses html and returns a 4-sized Object array
-    // Object[] = {ArrayList<Replacement>, ArrayList<Message>, String[], String[]}
-    private static Object[] parseHtml(String html, Grade grade) throws WebException
-    {
-        // Create collector lists for replacements and messages
-        ArrayList<Replacement> replacements = new ArrayList<>();
-        ArrayList<Message> messages = new ArrayList<>();
-        // Get line separator and split html into lines
-        String separator = html.contains("\r\n") ? "\r\n" : "\n";
-        String[] lines = html.split(separator);
-        // Variable to store current date(s) and day name
-        String currentDate = "";
-        String currentDay = "";
-        ArrayList<String> allDates = new ArrayList<>();
-        ArrayList<String> allDays = new ArrayList<>();
-        // Boolean which indicates that we are currently building the message text
-        boolean inMessage = false;
-        // String builder to build message text
-        StringBuilder messageTextBuilder = new StringBuilder();
-
-        for (int i = 0; i < lines.length; i++)
-        {
-            String line = lines[i];
-
-            // -----------------------------------------------
-            // --- Check validity of this ReplacementTable ---
-            // -----------------------------------------------
-            // The server stores all replacements for about 1 year
-            // Sometimes this old replacements collide with the new ones, consider this example:
-            // ReplacementTable of Grade 11 - Week 1:
-            //     Real Grade: 11
-            // ReplacementTable of Grade 11 - Week 2:
-            //     Real Grade: 12 <- why? | That's because new grades were added and so the whole grade list shifted
-            //                              one up.
-            // To check the validity of the current ReplacementTable, we just have to check the grade embedded in
-            // the HTML code. If it equals our given grade, it's valid. If not then not.
-            // Unique keyword for the line containing the grade: "<BR>"
-
-            if (grade != null)
+        if (probe && previous != null)
+        {
+            // Revalidate the server in the background and return the last table meanwhile
+            try
             {
-                if (line.contains("<BR>"))
+                SharedExecutor.get().execute(() ->
                 {
-                    String strGrade = removeHtmlTags(line)
-                            .replaceAll(" ", "")
-                            .replace("Klasse", "");
-                    Grade _grade = Grade.parse(strGrade);
-                    if (_grade != null)
+                    try
                     {
-                        if (!_grade.equals(grade))
-                        {
-                            throw new WebException("Corrupted data");
-                        }
+                        fetchTable(url, grade, previous, breaker, lazy);
                     }
-                    else
+                    catch (WebException e)
                     {
-                        // Interrupt parsing and raise exception
-                        throw new WebException("Corrupted data");
+                        // The breaker has been opened again (or the page was rejected), report it
+                        metrics.recordRevalidationFailure(url, e);
                     }
-                }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                breaker.onFailure();
+                metrics.recordRevalidationFailure(url, new WebException("Couldn't schedule revalidation", e));
+            }
+
+            return previous.toStale();
+        }
+
+        return fetchTable(url, grade, previous, breaker, lazy);
+    }
+
+    // Downloads and parses the table after the breaker let the request through
+    private static ReplacementTable fetchTable(String url, Grade grade, ReplacementTable previous,
+                                               CircuitBreaker breaker, boolean lazy) throws WebException
+    {
+        ReplacementTable table;
+        if (lazy)
+        {
+            // Keep the page and only read its sections. Like below, the table is built inside the body reader,
+            // so the validators of a page which fails the section scan aren't stored.
+            table = client.download(url, previous != null, reader ->
+            {
+                String html = Utils.readToEnd(reader);
+                return new ReplacementTable(html, parseSections(html, grade), grade, Calendar.getInstance());
+            }, breaker);
+            if (table == null)
+            {
+                return previous;
+            }
+        }
+        else
+        {
+            // Parse the page while it is downloaded. The table is built inside the body reader, so the
+            // validators of the response are only stored if the page could be turned into a table.
+            table = client.download(url, previous != null, reader ->
+            {
+                long start = System.nanoTime();
+                Object[] result = recordParse(start, new ReplacementTableParser(grade).parse(reader).toResults());
+                return new ReplacementTable(result, grade, Calendar.getInstance());
+            }, breaker);
+            if (table == null)
+            {
+                // Server answered with "304 Not Modified"
+                return previous;
             }
+        }
+
+        lastTables.put(grade, url, table);
+        return table;
+    }
+
+    /**
+     * Downloads the ReplacementTables of all given grades for the week offset concurrently.
+     *
+     * @param grades Grades whose tables are going to be downloaded
+     * @param plusWeeks Week offset (default is 0)
+     * @param parallelism Maximum number of downloads running at the same time
+     * @return Result containing all downloaded tables and all failures
+     */
+    public static DownloadResult downloadAll(Collection<Grade> grades, int plusWeeks, int parallelism)
+    {
+        return downloadAll(grades, Collections.singletonList(plusWeeks), parallelism);
+    }
 
-            // -----------------------------
-            // --- Retrieve current date ---
-            // -----------------------------
-            // Messages in html code have no property or attribute which indicates its
-            // current date, but luckily the html itself contains lines which are easily parsable.
-            // Some lines contain the current day names within <b> tags. The <b> tags also only appear
-            // at this places, so they are unique and save to parse.
+    /**
+     * Downloads the ReplacementTables of all given grades for all week offsets concurrently
+     * on the shared executor (see setExecutor()).
+     * A failed download doesn't affect the other ones, it is stored in the result instead.
+     *
+     * @param grades Grades whose tables are going to be downloaded
+     * @param weeks Week offsets which are going to be downloaded for each grade
+     * @param parallelism Maximum number of downloads running at the same time
+     * @return Result containing all downloaded tables and all failures
+     */
+    public static DownloadResult downloadAll(Collection<Grade> grades, Collection<Integer> weeks, int parallelism)
+    {
+        if (parallelism < 1)
+        {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
 
-            if (line.contains("<b>") && !inMessage)
+        // Start one download per grade and week as soon as one of the permits is free
+        Semaphore permits = new Semaphore(parallelism);
+        ArrayList<Grade> taskGrades = new ArrayList<>();
+        ArrayList<Integer> taskWeeks = new ArrayList<>();
+        ArrayList<CompletableFuture<ReplacementTable>> futures = new ArrayList<>();
+        DownloadResult result = new DownloadResult();
+        try
+        {
+            for (Grade grade : grades)
             {
-                // In a current date line
-                // Perform a substring
-                int start = line.indexOf("<b>") + 3; // Add 3 because keyword "<b>" is 3 chars long.
-                int end = line.indexOf(" ", start);
-                currentDate = line.substring(start, end);
-                start += currentDate.length() + 1;
-                end = line.indexOf("</", start);
-                currentDay = line.substring(start, end);
-                // Remove whitespaces from day
-                currentDay = currentDay.trim();
-                // Add new date/day to global dates field
-                allDates.add(currentDate);
-                allDays.add(currentDay);
-                continue;
+                for (int plusWeeks : weeks)
+                {
+                    permits.acquire();
+                    taskGrades.add(grade);
+                    taskWeeks.add(plusWeeks);
+                    futures.add(downloadTableAsync(grade, plusWeeks).whenComplete((table, t) -> permits.release()));
+                }
             }
 
-            // -----------------------------
-            // --- Retrieve replacements ---
-            // -----------------------------
-            // All replacements are stored in table rows (<tr>) with the class "list odd" or "list even".
-            // (there are different classes because they need to rendered with different colors)
-            // The goal is to read each table data in this table row and pass it to our Replacement.Builder to create
-            // a java object based on the html file. Unique keywords:
-            // - "list odd"
-            // - "list even"
-
-            if (line.contains("list odd") || line.contains("list even"))
+            for (int i = 0; i < futures.size(); i++)
             {
-                // First remove the first part from '<tr..' until '"center">'
-                int start = line.indexOf("\">") + 2; // Add 2 because keyword "">" is 2 chars long
-                line = line.substring(start);
-                // Get data by splitting line with keyword "</td><td class="list" align="center">"
-                line = line
-                        .replaceAll("</td><td class=\"list\" align=\"center\">", "</td><td class=\"list\">")
-                        .replaceAll("&nbsp;", "---");
-                ArrayList<String> data = new ArrayList<>(Arrays.asList(line.split("</td><td class=\"list\">")));
-                data.add(1, currentDay);
-
-                // Convert to String Array
-                String[] data_arr = new String[data.size()];
-                data_arr = data.toArray(data_arr);
-                // Remove brackets from grade data (not occurring all the time)
-                data_arr[2] = data_arr[2].replace("(", "").replace(")", "");
-                // Remove " R" at the end of a room
-                if (data_arr[5].endsWith(" R"))
+                Grade grade = taskGrades.get(i);
+                int plusWeeks = taskWeeks.get(i);
+                try
                 {
-                    data_arr[5] = data_arr[5].substring(0, data_arr[5].length() - 2);
+                    result.addTable(grade, plusWeeks, futures.get(i).get());
                 }
-                // Remove html tags from data piece
-                data_arr[7] = data_arr[7].replace("</td></tr>", "");
-                // Add (forgotten?) "fällt aus" if new room and new subject are empty
-                if (data_arr[4].equals("---") && data_arr[5].equals("---") && data_arr[7].equals("---"))
+                catch (ExecutionException e)
                 {
-                    data_arr[7] = "fällt aus";
+                    result.addFailure(grade, plusWeeks, toWebException(e.getCause()));
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Report every download as failed which hasn't been stored or started yet
+            Thread.currentThread().interrupt();
+            for (Grade grade : grades)
+            {
+                for (int plusWeeks : weeks)
+                {
+                    if (result.getTable(grade, plusWeeks) == null && result.getFailure(grade, plusWeeks) == null)
+                    {
+                        result.addFailure(grade, plusWeeks, new WebException("Download interrupted", e));
+                    }
                 }
-
-                // Build replacement
-                Replacement.Builder builder = Replacement.Builder
-                        .fromData(data_arr);
-                Replacement replacement = builder.create();
-                replacements.add(replacement);
-                continue;
             }
+        }
+
+        return result;
+    }
 
-            // -------------------------
-            // --- Retrieve messages ---
-            // -------------------------
-            // All messages are located in tables with the attribute "rules", which is a parse-safe keyword.
-            // Goal is to extract the message from the second table row of the table and pass it to our Message.Builder
-            // to create a java object based on the html file. Unique keywords:
-            // - "rules" (for the table)
+    /**
+     * Downloads the ReplacementTables of the chosen grade for all week offsets from fromWeeks to toWeeks
+     * concurrently on the shared executor (see setExecutor()).
+     *
+     * @param grade The grade decides which tables are going to be downloaded
+     * @param fromWeeks First week offset (inclusive)
+     * @param toWeeks Last week offset (inclusive)
+     * @return Tables in week order
+     * @throws WebException Failed to download one of the ReplacementTables
+     */
+    public static List<ReplacementTable> downloadTables(Grade grade, int fromWeeks, int toWeeks) throws WebException
+    {
+        List<Integer> weeks = getWeekRange(fromWeeks, toWeeks);
+        // Start all downloads before waiting for the first one
+        ArrayList<CompletableFuture<ReplacementTable>> futures = new ArrayList<>(weeks.size());
+        for (int plusWeeks : weeks)
+        {
+            futures.add(downloadTableAsync(grade, plusWeeks));
+        }
 
-            if (inMessage && line.contains("</table>"))
+        ArrayList<ReplacementTable> tables = new ArrayList<>(futures.size());
+        try
+        {
+            for (CompletableFuture<ReplacementTable> future : futures)
             {
-                // If this line contains the above keyword, the message text ends.
-                inMessage = false;
-                // Build message and it to our list
-                Message.Builder builder = new Message.Builder()
-                        .setText(messageTextBuilder.toString())
-                        .setDay(currentDay)
-                        .setDate(currentDate);
-                Message message = builder.create();
-                messages.add(message);
-                // Reset messageTextBuilder
-                messageTextBuilder = new StringBuilder();
-                continue;
+                tables.add(future.get());
             }
+        }
+        catch (ExecutionException e)
+        {
+            throw toWebException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebException("Download interrupted", e);
+        }
 
-            if (inMessage)
-            {
-                // We are here if we previously flagged the boolean inMessage.
+        return tables;
+    }
 
-                // Clean string
-                line = line.replaceAll("\r", "");
-                while (line.contains("<br><br>"))
-                {
-                    line = line.replace("<br><br>", "<br>");
-                }
+    /**
+     * Downloads the ReplacementTables of all given grades for all week offsets from fromWeeks to toWeeks
+     * concurrently. DownloadResult.getTables(grade) returns the tables of a grade in week order.
+     *
+     * @param grades Grades whose tables are going to be downloaded
+     * @param fromWeeks First week offset (inclusive)
+     * @param toWeeks Last week offset (inclusive)
+     * @param parallelism Maximum number of downloads running at the same time
+     * @return Result containing all downloaded tables and all failures
+     */
+    public static DownloadResult downloadRange(Collection<Grade> grades, int fromWeeks, int toWeeks, int parallelism)
+    {
+        return downloadAll(grades, getWeekRange(fromWeeks, toWeeks), parallelism);
+    }
+
+    // Returns all week offsets from fromWeeks to toWeeks
+    private static List<Integer> getWeekRange(int fromWeeks, int toWeeks)
+    {
+        if (fromWeeks > toWeeks)
+        {
+            throw new IllegalArgumentException("fromWeeks must not be greater than toWeeks");
+        }
+
+        ArrayList<Integer> weeks = new ArrayList<>(toWeeks - fromWeeks + 1);
+        for (int plusWeeks = fromWeeks; plusWeeks <= toWeeks; plusWeeks++)
+        {
+            weeks.add(plusWeeks);
+        }
 
-                line = line.replaceAll("<br>", "\n");
-                String text = removeHtmlTags(line).trim().replaceAll(" {2}", " "); // Remove double spaces
+        return weeks;
+    }
 
-                // Add string to the whole message
-                messageTextBuilder.append(text);
-                continue;
+    /**
+     * Combines the tables (e.g. of downloadTables()) into one table, which contains the dates, days,
+     * replacements and messages of all tables in the given order. The combined table has a grade only if
+     * all tables have the same one, its download date is the oldest one and it is stale if any table is.
+     *
+     * @param tables Tables to combine
+     * @return Combined table
+     */
+    public static ReplacementTable merge(List<ReplacementTable> tables)
+    {
+        ArrayList<Replacement> replacements = new ArrayList<>();
+        ArrayList<Message> messages = new ArrayList<>();
+        ArrayList<String> dates = new ArrayList<>();
+        ArrayList<String> days = new ArrayList<>();
+        Grade grade = tables.isEmpty() ? null : tables.get(0).grade;
+        Calendar downloadDate = null;
+        boolean stale = false;
+
+        HashMap<String, Long> epochDays = new HashMap<>();
+        for (ReplacementTable table : tables)
+        {
+            table.ensureParsed();
+            // Every part resolves its dates relative to its own download date
+            epochDays.putAll(table.getEpochDays());
+            // Periods of different weeks are never merged, so the parts are already optimized
+            replacements.addAll(table.replacements);
+            messages.addAll(table.messages);
+            dates.addAll(Arrays.asList(table.dates));
+            days.addAll(Arrays.asList(table.days));
+
+            if (!Objects.equals(grade, table.grade))
+            {
+                grade = null;
             }
 
-            if (line.contains("rules"))
+            if (downloadDate == null || (table.downloadDate != null && table.downloadDate.before(downloadDate)))
             {
-                // Set flag that we are have to parse the message text
-                inMessage = true;
-                // Skip one line, because isn't interesting for us
-                i += 1;
+                downloadDate = table.downloadDate;
             }
+
+            stale |= table.stale;
+        }
+
+        ReplacementTable merged = new ReplacementTable(replacements, messages, dates.toArray(new String[0]),
+                days.toArray(new String[0]), grade, downloadDate);
+        merged.stale = stale;
+        merged.epochDays = epochDays;
+        return merged;
+    }
+
+    // Wraps unexpected exceptions of a download into a WebException
+    static WebException toWebException(Throwable throwable)
+    {
+        // Unwrap exceptions of CompletableFuture stages
+        while (throwable instanceof CompletionException && throwable.getCause() != null)
+        {
+            throwable = throwable.getCause();
         }
 
-        // Put dates into an array
-        String[] dates = new String[allDates.size()];
-        dates = allDates.toArray(dates);
-        // Put days into an array
-        String[] days = new String[allDays.size()];
-        days = allDays.toArray(days);
+        if (throwable instanceof WebException)
+        {
+            return (WebException) throwable;
+        }
 
-        return new Object[] {replacements, messages, dates, days};
+        return new WebException("Couldn't download replacement table", throwable);
     }
 
-    // Removes all html tags in text which was retrieved using the parser from above
-    private static String removeHtmlTags(String text)
+    // Returns the week of year of the current week plus the week offset
+    static int getWeekOfYear(int plusWeeks)
     {
-        // StringBuilder is used, because it handles not final strings the most efficient.
-        StringBuilder builder = new StringBuilder();
-        builder.append(text);
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.WEEK_OF_YEAR, plusWeeks);
+        return calendar.get(Calendar.WEEK_OF_YEAR);
+    }
 
-        // Html tags are build of "<", "something" and ">".
-        while (builder.indexOf("<") != -1 && builder.indexOf(">") != -1)
+    // Builds the download url based on parameters
+    private static String getDownloadUrl(Grade grade, int plusWeeks)
+    {
+        // Preparing arguments to fill the '%s's in DOWNLOAD_URL
+        String week = String.valueOf(getWeekOfYear(plusWeeks));
+        // If week has length = 1 -> prefix a '0' otherwise our WebClient will return 404
+        if (week.length() == 1)
         {
-            // Delete tags and tag name between the tags
-            int start = builder.indexOf("<");
-            int end = builder.indexOf(">") + 1; // Add 1 because keyword ">" is 1 char long.
-            builder.delete(start, end);
+            week = "0" + week;
         }
 
-        return builder.toString();
+        // Get grade webCode from grade object
+        String webCode = grade.getWebCode();
+        // Format url using the two arguments just created
+        return String.format(DOWNLOAD_URL, week, webCode);
+    }
+
+    // Parses html and returns a 4-sized Object array
+    // Object[] = {ArrayList<Replacement>, ArrayList<Message>, String[], String[]}
+    private static Object[] parseHtml(String html, Grade grade) throws WebException
+    {
+        // Walk the page once and let the parser feed the builders directly
+        long start = System.nanoTime();
+        return recordParse(start, new ReplacementTableParser(grade)
+                .parse(html)
+                .toResults());
+    }
+
+    // Only reads the grade, dates and days of the page
+    private static ReplacementTableParser.Page parseSections(String html, Grade grade) throws WebException
+    {
+        return new ReplacementTableParser(grade, true)
+                .parse(html)
+                .toPage();
+    }
+
+    // Reports the parse time and the size of the results
+    private static Object[] recordParse(long start, Object[] results)
+    {
+        recordParse(start, ((List<?>) results[0]).size(), ((List<?>) results[1]).size());
+        return results;
+    }
+
+    // Reports the parse time and the number of parsed replacements and messages
+    private static void recordParse(long start, int replacements, int messages)
+    {
+        Metrics current = metrics;
+        if (current != Metrics.NONE)
+        {
+            current.recordParse(System.nanoTime() - start, replacements, messages);
+        }
     }
 
     // Private constructor which initializes table with the help of the results object array
@@ -353,14 +694,93 @@ public class ReplacementTable implements Serializable
         optimize();
     }
 
+    // Constructor of a lazy table, which only knows the dates and days of the page yet
+    private ReplacementTable(String html, ReplacementTableParser.Page sections, Grade grade, Calendar downloadDate)
+    {
+        dates = sections.dates;
+        days = sections.days;
+        this.grade = grade;
+        this.downloadDate = downloadDate;
+        this.html = html;
+    }
+
+    // Constructor for already optimized data (e.g. decoded by the ReplacementTableCodec)
+    ReplacementTable(ArrayList<Replacement> replacements, ArrayList<Message> messages, String[] dates, String[] days,
+                     Grade grade, Calendar downloadDate)
+    {
+        this.replacements = replacements;
+        this.messages = messages;
+        this.dates = dates;
+        this.days = days;
+        this.grade = grade;
+        this.downloadDate = downloadDate;
+    }
+
+    // Parses the replacements and messages of a lazy table on first access
+    private void ensureParsed()
+    {
+        if (html != null)
+        {
+            synchronized (this)
+            {
+                String page = html;
+                if (page != null)
+                {
+                    try
+                    {
+                        // The grade has already been checked by the section scan
+                        long start = System.nanoTime();
+                        ReplacementTableParser.Page parsed = new ReplacementTableParser(null).parse(page).toPage();
+                        recordParse(start, parsed.replacements.size(), parsed.messages.size());
+                        replacements = parsed.replacements;
+                        messages = parsed.messages;
+                        optimize();
+                    }
+                    catch (WebException e)
+                    {
+                        throw new IllegalStateException("Couldn't parse replacement table", e);
+                    }
+
+                    // Publishes the parsed fields to all threads
+                    html = null;
+                }
+            }
+        }
+    }
+
+    // Lazy tables are parsed before they are written
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ensureParsed();
+        out.defaultWriteObject();
+    }
+
+    // Returns a copy of this table which is marked as stale
+    private ReplacementTable toStale()
+    {
+        ensureParsed();
+        ReplacementTable copy = new ReplacementTable(replacements, messages, dates, days, grade, downloadDate);
+        copy.stale = true;
+        return copy;
+    }
+
     /**
      * Returns all replacements
      *
-     * @return All replacements as list
+     * @return All replacements as list, which can be changed without affecting the table
      */
     public List<Replacement> getReplacements()
     {
-        return replacements;
+        ensureParsed();
+        // A copy, so the indexes always match the replacements
+        return new ArrayList<>(replacements);
+    }
+
+    // Returns a read-only view of all replacements for intern queries, which don't need a copy
+    List<Replacement> getReplacementList()
+    {
+        ensureParsed();
+        return Collections.unmodifiableList(replacements);
     }
 
     /**
@@ -383,94 +803,310 @@ public class ReplacementTable implements Serializable
      */
     public List<Replacement> getReplacements(Map<ReplacementFilter, Collection<String>> filter, Map<ReplacementFilter, Collection<String>> knownEntries)
     {
-        ArrayList<Replacement> filtered = new ArrayList<>();
-        ReplacementFilter[] keys = ReplacementFilter.values();
+        long start = System.nanoTime();
+        ReplacementIndex index = getIndex();
+        // Rows which are neither accepted nor rejected yet
+        BitSet remaining = new BitSet(index.size());
+        remaining.set(0, index.size());
+        // Rows which are accepted, because they contain unknown data
+        BitSet unknown = new BitSet(index.size());
 
-        for (Replacement replacement : replacements)
+        for (ReplacementFilter key : ReplacementFilter.values())
         {
-            boolean canAddReplacement = true;
+            if (remaining.isEmpty())
+            {
+                break;
+            }
 
-            for (ReplacementFilter key : keys)
+            // Is the replacement data known? Unknown data won't be checked by the filter and goes through
+            Collection<String> entries = knownEntries != null ? knownEntries.get(key) : null;
+            if (entries != null)
             {
-                String dataChunk = replacement.data[key.ordinal()];
+                BitSet unknownRows = index.notMatching(key, entries);
+                unknownRows.and(remaining);
+                unknown.or(unknownRows);
+                remaining.andNot(unknownRows);
+            }
 
-                // Is the replacement data known?
-                try
+            // Is the replacement valid?
+            Collection<String> filterValues = filter != null ? filter.get(key) : null;
+            if (filterValues != null)
+            {
+                remaining.and(index.matching(key, filterValues));
+            }
+        }
+
+        remaining.or(unknown);
+        ArrayList<Replacement> filtered = new ArrayList<>(remaining.cardinality());
+        for (int row = remaining.nextSetBit(0); row >= 0; row = remaining.nextSetBit(row + 1))
+        {
+            filtered.add(replacements.get(row));
+        }
+
+        recordFilter(start, filtered.size());
+        return filtered;
+    }
+
+    /**
+     * Returns all replacements, which meet all criteria of the compiled query
+     *
+     * @param query Query compiled from filter maps
+     * @return All replacements after the query was applied
+     */
+    public List<Replacement> getReplacements(ReplacementQuery query)
+    {
+        long start = System.nanoTime();
+        List<Replacement> filtered = query.filter(this);
+        recordFilter(start, filtered.size());
+        return filtered;
+    }
+
+    /**
+     * Returns all replacements on the date which affect the period
+     *
+     * @param date Date of the replacements
+     * @param period Period (e.g. 3 also returns replacements of "3 - 4")
+     * @return All replacements of the period in table order
+     */
+    public List<Replacement> getReplacements(LocalDate date, int period)
+    {
+        return getReplacements(date, date, period, period);
+    }
+
+    /**
+     * Returns all replacements within the date range, see getEpochDay()
+     *
+     * @param from First date (inclusive)
+     * @param to Last date (inclusive)
+     * @return All replacements within the range in table order
+     */
+    public List<Replacement> getReplacements(LocalDate from, LocalDate to)
+    {
+        long start = System.nanoTime();
+        return toReplacements(start, getIntervalIndex().between(from.toEpochDay(), to.toEpochDay()));
+    }
+
+    /**
+     * Returns all replacements within the date range whose periods overlap the period range
+     *
+     * @param from First date (inclusive)
+     * @param to Last date (inclusive)
+     * @param fromPeriod First period (inclusive)
+     * @param toPeriod Last period (inclusive)
+     * @return All replacements within both ranges in table order
+     */
+    public List<Replacement> getReplacements(LocalDate from, LocalDate to, int fromPeriod, int toPeriod)
+    {
+        long start = System.nanoTime();
+        return toReplacements(start, getIntervalIndex()
+                .between(from.toEpochDay(), to.toEpochDay(), fromPeriod, toPeriod));
+    }
+
+    // Collects the replacements of the rows and reports the filter time
+    private List<Replacement> toReplacements(long start, BitSet rows)
+    {
+        ArrayList<Replacement> filtered = new ArrayList<>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+        {
+            filtered.add(replacements.get(row));
+        }
+
+        recordFilter(start, filtered.size());
+        return filtered;
+    }
+
+    // Reports the filter time
+    private void recordFilter(long start, int matches)
+    {
+        Metrics current = metrics;
+        if (current != Metrics.NONE)
+        {
+            current.recordFilter(System.nanoTime() - start, replacements.size(), matches);
+        }
+    }
+
+    // Returns the index of the replacements and builds it on first use
+    ReplacementIndex getIndex()
+    {
+        ensureParsed();
+        ReplacementIndex current = index;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = index;
+                if (current == null)
                 {
-                    Collection<String> entries = knownEntries.get(key);
-                    if (entries != null && !entries.contains(dataChunk))
-                    {
-                        // Data is unknown, so it won't be checked by the filter and go through
-                        canAddReplacement = true;
-                        break;
-                    }
+                    current = new ReplacementIndex(replacements);
+                    index = current;
                 }
-                catch (NullPointerException e) {}
+            }
+        }
 
-                // Is the replacement valid?
-                try
+        return current;
+    }
+
+    // Returns the date and period index of the replacements and builds it on first use
+    private ReplacementIntervalIndex getIntervalIndex()
+    {
+        ensureParsed();
+        ReplacementIntervalIndex current = intervalIndex;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = intervalIndex;
+                if (current == null)
                 {
-                    Collection<String> filterValues = filter.get(key);
-                    if (filterValues != null && !filterValues.contains(dataChunk))
-                    {
-                        canAddReplacement = false;
-                        break;
-                    }
+                    current = new ReplacementIntervalIndex(replacements, this::getEpochDay);
+                    intervalIndex = current;
                 }
-                catch (NullPointerException e) {}
             }
+        }
+
+        return current;
+    }
+
+    /**
+     * Returns the date of the replacement as day since 1970-01-01. The page doesn't contain the year,
+     * so the year which puts the date closest to the download date of the table is used
+     * (today for tables without download date). Tables combined by merge() keep the years of their parts.
+     *
+     * @param replacement Replacement of this table
+     * @return Epoch day or Long.MIN_VALUE if the date isn't parsable
+     */
+    public long getEpochDay(Replacement replacement)
+    {
+        Long epochDay = getEpochDays().get(replacement.getDate());
+        return epochDay != null ? epochDay : Utils.parseEpochDay(replacement.getDate(), getReferenceDate());
+    }
 
-            if (canAddReplacement)
+    // Returns the epoch day of every date of the replacements and computes them on first use
+    private Map<String, Long> getEpochDays()
+    {
+        Map<String, Long> current = epochDays;
+        if (current == null)
+        {
+            ensureParsed();
+            synchronized (this)
             {
-                filtered.add(replacement);
+                current = epochDays;
+                if (current == null)
+                {
+                    // A table only contains a few different dates, so each one is parsed once
+                    LocalDate reference = getReferenceDate();
+                    HashMap<String, Long> days = new HashMap<>();
+                    for (Replacement replacement : replacements)
+                    {
+                        days.computeIfAbsent(replacement.getDate(), date -> Utils.parseEpochDay(date, reference));
+                    }
+
+                    current = days;
+                    epochDays = current;
+                }
             }
         }
 
-        return filtered;
+        return current;
+    }
+
+    // Returns the date the years of the dates are taken from
+    private LocalDate getReferenceDate()
+    {
+        if (downloadDate == null)
+        {
+            return LocalDate.now();
+        }
+
+        return LocalDateTime.ofInstant(downloadDate.toInstant(), downloadDate.getTimeZone().toZoneId()).toLocalDate();
     }
 
-    // Merges two replacements with equal content into one
-    private void optimize()
+    // Merges runs of replacements with equal content and consecutive periods into one
+    // (e.g. periods "1", "2" and "3" become "1 - 3") in a single pass
+    // Package-private so the benchmarks can run it on its own
+    void optimize()
     {
-        for (int i = 0; i < replacements.size() - 1; i++)
+        ArrayList<Replacement> optimized = new ArrayList<>(replacements.size());
+        int i = 0;
+
+        while (i < replacements.size())
         {
-            Replacement r1 = replacements.get(i);
-            Replacement r2 = replacements.get(i + 1);
-            // Get replacements data for comparision
-            // Set period to ""
-            String[] data1 = r1.getData();
-            data1[3] = "";
-            String[] data2 = r2.getData();
-            data2[3] = "";
-            if (Arrays.equals(data1, data2))
+            Replacement first = replacements.get(i);
+            int j = i + 1;
+
+            if (first.getPeriodStart() != -1)
             {
-                // If true: both replacements can be merged together
-                int p1 = Integer.parseInt(r1.getPeriod());
-                int p2 = Integer.parseInt(r2.getPeriod());
-                if (Math.abs(p1 - p2) != 1)
+                int low = first.getPeriodStart();
+                int high = first.getPeriodEnd();
+                // 1 = ascending periods, -1 = descending periods, 0 = not known yet
+                int direction = 0;
+
+                while (j < replacements.size())
                 {
-                    continue;
+                    Replacement next = replacements.get(j);
+                    if (next.getPeriodStart() == -1 || !equalsIgnoringPeriod(first, next))
+                    {
+                        break;
+                    }
+
+                    int nextLow = next.getPeriodStart();
+                    int nextHigh = next.getPeriodEnd();
+                    if (direction >= 0 && nextLow == high + 1)
+                    {
+                        direction = 1;
+                        high = nextHigh;
+                    }
+                    else if (direction <= 0 && nextHigh == low - 1)
+                    {
+                        direction = -1;
+                        low = nextLow;
+                    }
+                    else
+                    {
+                        break;
+                    }
+
+                    j++;
                 }
 
-                if (p1 > p2)
+                if (j - i > 1)
                 {
-                    int tmp = p1;
-                    p1 = p2;
-                    p2 = tmp;
+                    // Build new replacement covering the whole run
+                    String period = StringPool.SHARED.get(low == high ? String.valueOf(low) : low + " - " + high);
+                    first = Replacement.Builder
+                            .fromReplacement(first)
+                            .setPeriod(period)
+                            .create();
                 }
+            }
+
+            optimized.add(first);
+            i = j;
+        }
+
+        metrics.recordOptimize(replacements.size(), optimized.size());
+        replacements = optimized;
+    }
+
+    // Compares all data of both replacements except the period
+    private static boolean equalsIgnoringPeriod(Replacement r1, Replacement r2)
+    {
+        String[] data1 = r1.data;
+        String[] data2 = r2.data;
+        if (data1.length != data2.length)
+        {
+            return false;
+        }
 
-                String period = String.format("%d - %d", p1, p2);
-                // Build new replacement
-                Replacement.Builder builder = Replacement.Builder
-                        .fromData(data1)
-                        .setPeriod(period);
-                Replacement replacement = builder.create();
-                // Delete old replacements (2 times)
-                for (int j = 0; j < 2; j++) replacements.remove(i);
-                // Add new replacement
-                replacements.add(i, replacement);
+        for (int i = 0; i < data1.length; i++)
+        {
+            if (i != ReplacementFilter.PERIOD.ordinal() && !Objects.equals(data1[i], data2[i]))
+            {
+                return false;
             }
         }
+
+        return true;
     }
 
     /**
@@ -480,6 +1116,7 @@ public class ReplacementTable implements Serializable
      */
     public List<Message> getMessages()
     {
+        ensureParsed();
         return messages;
     }
 
@@ -523,4 +1160,21 @@ public class ReplacementTable implements Serializable
     {
         return downloadDate;
     }
+
+    /**
+     * Returns whether this table is the last downloaded one of a server, which is currently unavailable.
+     * getDownloadDate() tells how old it is.
+     *
+     * @return Whether the table might be outdated
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    // Used by the codec to restore the flag of a decoded table
+    void setStale(boolean stale)
+    {
+        this.stale = stale;
+    }
 }
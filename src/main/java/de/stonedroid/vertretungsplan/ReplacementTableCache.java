@@ -0,0 +1,291 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory cache in front of the ReplacementTable downloader.
+ * <p>
+ * Tables are cached by grade and week for a fixed time to live. If the cache is full, the least recently
+ * used table is removed. Concurrent requests for a table which isn't cached share one download.
+ */
+public class ReplacementTableCache implements TableLoader
+{
+    private final TableLoader loader;
+    private final long ttlNanos;
+    private final int maxSize;
+    private final LongSupplier ticker;
+
+    // Access ordered map, so the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, CacheEntry> entries;
+
+    // Statistics, guarded by this
+    private long hitCount;
+    private long missCount;
+    private long loadSuccessCount;
+    private long loadFailureCount;
+    private long totalLoadTime;
+    private long evictionCount;
+
+    /**
+     * Creates a cache which downloads missing tables with ReplacementTable.downloadTable()
+     *
+     * @param ttl Time a table stays in the cache after it was downloaded
+     * @param unit Unit of ttl
+     * @param maxSize Maximum number of cached tables
+     */
+    public ReplacementTableCache(long ttl, TimeUnit unit, int maxSize)
+    {
+        this(ReplacementTable::downloadTable, ttl, unit, maxSize);
+    }
+
+    /**
+     * Creates a cache which loads missing tables with the given loader
+     *
+     * @param loader Loader used for missing or expired tables
+     * @param ttl Time a table stays in the cache after it was loaded
+     * @param unit Unit of ttl
+     * @param maxSize Maximum number of cached tables
+     */
+    public ReplacementTableCache(TableLoader loader, long ttl, TimeUnit unit, int maxSize)
+    {
+        this(loader, ttl, unit, maxSize, System::nanoTime);
+    }
+
+    // Constructor with exchangeable time source for junit testing
+    ReplacementTableCache(TableLoader loader, long ttl, TimeUnit unit, int maxSize, LongSupplier ticker)
+    {
+        if (maxSize < 1)
+        {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+
+        this.loader = loader;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxSize = maxSize;
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest)
+            {
+                if (size() > ReplacementTableCache.this.maxSize)
+                {
+                    evictionCount++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the ReplacementTable for the chosen grade for the current week
+     *
+     * @param grade The grade decides which table is going to be returned
+     * @return Cached or freshly downloaded ReplacementTable
+     * @throws WebException Failed to download ReplacementTable
+     */
+    public ReplacementTable get(Grade grade) throws WebException
+    {
+        return get(grade, 0);
+    }
+
+    /**
+     * Returns the ReplacementTable (with week offset) for the chosen grade. If the table isn't cached
+     * or has expired, it is loaded. Concurrent calls for the same table wait for the same load.
+     *
+     * @param grade The grade decides which table is going to be returned
+     * @param plusWeeks Week offset (default is 0)
+     * @return Cached or freshly downloaded ReplacementTable
+     * @throws WebException Failed to download ReplacementTable
+     */
+    public ReplacementTable get(Grade grade, int plusWeeks) throws WebException
+    {
+        // Use the real week, so a cached table of the last week isn't returned after the week has changed
+        Key key = Key.of(grade, plusWeeks);
+        CacheEntry entry;
+        boolean load = false;
+
+        synchronized (this)
+        {
+            entry = entries.get(key);
+            if (entry != null && !entry.isExpired(ticker.getAsLong()))
+            {
+                hitCount++;
+            }
+            else
+            {
+                missCount++;
+                entry = new CacheEntry();
+                entries.put(key, entry);
+                load = true;
+            }
+        }
+
+        if (load)
+        {
+            load(key, entry, grade, plusWeeks);
+        }
+
+        return await(entry.future);
+    }
+
+    // Loads the table of the entry and updates the statistics
+    private void load(Key key, CacheEntry entry, Grade grade, int plusWeeks)
+    {
+        long start = ticker.getAsLong();
+        try
+        {
+            ReplacementTable table = loader.load(grade, plusWeeks);
+            long end = ticker.getAsLong();
+            synchronized (this)
+            {
+                entry.loadedAt = end;
+                loadSuccessCount++;
+                totalLoadTime += end - start;
+            }
+
+            entry.future.complete(table);
+        }
+        catch (Throwable t)
+        {
+            synchronized (this)
+            {
+                // Don't cache failures
+                entries.remove(key, entry);
+                loadFailureCount++;
+                totalLoadTime += ticker.getAsLong() - start;
+            }
+
+            entry.future.completeExceptionally(t);
+        }
+    }
+
+    // Waits for the table and converts failures into WebExceptions
+    private static ReplacementTable await(CompletableFuture<ReplacementTable> future) throws WebException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw ReplacementTable.toWebException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebException("Interrupted while waiting for the download", e);
+        }
+    }
+
+    /**
+     * Same as get(), so the cache can be used wherever a TableLoader is expected
+     */
+    @Override
+    public ReplacementTable load(Grade grade, int plusWeeks) throws WebException
+    {
+        return get(grade, plusWeeks);
+    }
+
+    /**
+     * Removes the ReplacementTable (with week offset) of the chosen grade from the cache
+     *
+     * @param grade Grade of the table
+     * @param plusWeeks Week offset (default is 0)
+     */
+    public synchronized void invalidate(Grade grade, int plusWeeks)
+    {
+        entries.remove(Key.of(grade, plusWeeks));
+    }
+
+    /**
+     * Removes all tables from the cache
+     */
+    public synchronized void invalidateAll()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of cached tables (including tables which are currently loading)
+     *
+     * @return Number of cached tables
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the current statistics of the cache
+     *
+     * @return Snapshot of hit, miss and load statistics
+     */
+    public synchronized CacheStats getStats()
+    {
+        return new CacheStats(hitCount, missCount, loadSuccessCount, loadFailureCount, totalLoadTime, evictionCount);
+    }
+
+    // Cache key made of grade, week-based year and week of year
+    private static final class Key
+    {
+        private final Grade grade;
+        private final int weekYear;
+        private final int week;
+
+        Key(Grade grade, int weekYear, int week)
+        {
+            this.grade = grade;
+            this.weekYear = weekYear;
+            this.week = week;
+        }
+
+        // Key of the current week (with week offset), the year keeps weeks of different years apart
+        static Key of(Grade grade, int plusWeeks)
+        {
+            Calendar calendar = Calendar.getInstance();
+            calendar.add(Calendar.WEEK_OF_YEAR, plusWeeks);
+            return new Key(grade, calendar.getWeekYear(), calendar.get(Calendar.WEEK_OF_YEAR));
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj instanceof Key)
+            {
+                Key other = (Key) obj;
+                return week == other.week && weekYear == other.weekYear && grade.equals(other.grade);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (31 * grade.hashCode() + weekYear) * 31 + week;
+        }
+    }
+
+    // Cached table, which might still be loading
+    private final class CacheEntry
+    {
+        private final CompletableFuture<ReplacementTable> future = new CompletableFuture<>();
+        // Time of the completed load, guarded by the cache
+        private long loadedAt;
+
+        // A loading entry never expires, so concurrent requests join the running load
+        boolean isExpired(long now)
+        {
+            return future.isDone() && now - loadedAt >= ttlNanos;
+        }
+    }
+}
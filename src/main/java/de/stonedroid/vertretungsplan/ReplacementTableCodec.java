@@ -0,0 +1,572 @@
+package de.stonedroid.vertretungsplan;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compact, versioned binary format for ReplacementTables.
+ * <p>
+ * All strings of a table (dates, days, fields of replacements and messages, grade, time zone) are stored once
+ * in a dictionary and referenced by index. Numbers are written as varints. Decoded values are pooled, so
+ * tables decoded from many snapshots share their field values. The length of the body is stored in the header,
+ * so a stream is read with one bulk read and only the bytes of the table are consumed. Layout (version 2):
+ * <pre>
+ * magic "MPGV" | version | body length (4 bytes) | flags | dictionary | grade | download date | dates | days
+ *     | replacements | messages
+ * </pre>
+ */
+public final class ReplacementTableCodec
+{
+    // Format identification
+    private static final byte[] MAGIC = {'M', 'P', 'G', 'V'};
+    private static final int VERSION = 2;
+    // Magic, version (one byte varint) and body length
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    // Flags
+    private static final int FLAG_GRADE = 1;
+    private static final int FLAG_DOWNLOAD_DATE = 2;
+    private static final int FLAG_STALE = 4;
+
+    // Number of fields of replacements and messages
+    private static final int REPLACEMENT_WIDTH = 8;
+    private static final int MESSAGE_WIDTH = 3;
+
+    // Upper bound for counts and lengths, protects against corrupted input
+    private static final int MAX_COUNT = 1 << 24;
+
+    // Initial size of the buffer used to encode into streams
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private ReplacementTableCodec()
+    {
+    }
+
+    /**
+     * Writes the table to the stream. The table is encoded into an internal buffer first,
+     * which is written with a single write. The stream isn't closed.
+     *
+     * @param table Table to encode
+     * @param out Target stream
+     * @throws IOException Couldn't write to stream
+     */
+    public static void encode(ReplacementTable table, OutputStream out) throws IOException
+    {
+        ByteBuffer buffer = encode(table);
+        out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Encodes the table into a new buffer
+     *
+     * @param table Table to encode
+     * @return Buffer containing the encoded table, ready to be read
+     */
+    public static ByteBuffer encode(ReplacementTable table)
+    {
+        Output out = new Output(ByteBuffer.allocate(INITIAL_BUFFER_SIZE), true);
+        encode(table, out);
+        ByteBuffer buffer = out.buffer;
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes the table into the buffer starting at its current position
+     *
+     * @param table Table to encode
+     * @param buffer Target buffer
+     * @throws java.nio.BufferOverflowException Buffer is too small
+     */
+    public static void encode(ReplacementTable table, ByteBuffer buffer)
+    {
+        encode(table, new Output(buffer, false));
+    }
+
+    // Writes the header and the body, the length of the body is filled in afterwards
+    private static void encode(ReplacementTable table, Output out)
+    {
+        // Collect all strings first, the dictionary has to be written before the references
+        Dictionary dictionary = new Dictionary();
+        Grade grade = table.getGrade();
+        Calendar downloadDate = table.getDownloadDate();
+        if (grade != null)
+        {
+            dictionary.add(grade.toString());
+        }
+
+        if (downloadDate != null)
+        {
+            dictionary.add(downloadDate.getTimeZone().getID());
+        }
+
+        String[] dates = table.getDates();
+        String[] days = table.getDays();
+        dictionary.addAll(dates);
+        dictionary.addAll(days);
+
+        List<Replacement> replacements = table.getReplacementList();
+        for (Replacement replacement : replacements)
+        {
+            dictionary.addAll(replacement.data);
+        }
+
+        List<Message> messages = table.getMessages();
+        for (Message message : messages)
+        {
+            dictionary.addAll(message.data);
+        }
+
+        // Header
+        out.writeBytes(MAGIC);
+        out.writeVarint(VERSION);
+        int lengthPosition = out.reserveInt();
+        int bodyStart = out.buffer.position();
+
+        int flags = (grade != null ? FLAG_GRADE : 0) | (downloadDate != null ? FLAG_DOWNLOAD_DATE : 0)
+                | (table.isStale() ? FLAG_STALE : 0);
+        out.writeVarint(flags);
+
+        // Dictionary
+        out.writeVarint(dictionary.strings.size());
+        for (String string : dictionary.strings)
+        {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(bytes.length);
+            out.writeBytes(bytes);
+        }
+
+        // Bonus data
+        if (grade != null)
+        {
+            out.writeVarint(dictionary.indexOf(grade.toString()));
+        }
+
+        if (downloadDate != null)
+        {
+            out.writeVarint(dictionary.indexOf(downloadDate.getTimeZone().getID()));
+            out.writeVarlong(zigZag(downloadDate.getTimeInMillis()));
+        }
+
+        writeStrings(out, dictionary, dates);
+        writeStrings(out, dictionary, days);
+
+        // Replacements and messages
+        out.writeVarint(replacements.size());
+        for (Replacement replacement : replacements)
+        {
+            writeStrings(out, dictionary, replacement.data);
+        }
+
+        out.writeVarint(messages.size());
+        for (Message message : messages)
+        {
+            writeStrings(out, dictionary, message.data);
+        }
+
+        out.buffer.putInt(lengthPosition, out.buffer.position() - bodyStart);
+    }
+
+    /**
+     * Reads a table from the stream. Only the bytes of the table are consumed.
+     *
+     * @param in Source stream
+     * @return Decoded table
+     * @throws IOException Couldn't read from stream or data is corrupted
+     */
+    public static ReplacementTable decode(InputStream in) throws IOException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(in, header);
+        int length = readHeader(ByteBuffer.wrap(header));
+
+        // Read the whole body at once and decode it from memory
+        byte[] body = new byte[length];
+        readFully(in, body);
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        ReplacementTable table = decodeBody(buffer);
+        if (buffer.hasRemaining())
+        {
+            throw new StreamCorruptedException("Unexpected data behind the table");
+        }
+
+        return table;
+    }
+
+    /**
+     * Reads a table from the buffer starting at its current position.
+     * Afterwards the position points behind the table.
+     *
+     * @param buffer Source buffer
+     * @return Decoded table
+     * @throws IOException Data is corrupted
+     */
+    public static ReplacementTable decode(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            int length = readHeader(buffer);
+            if (length > buffer.remaining())
+            {
+                throw new EOFException();
+            }
+
+            // Don't read beyond the table, even if the buffer contains more data
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            ReplacementTable table = decodeBody(body);
+            if (body.hasRemaining())
+            {
+                throw new StreamCorruptedException("Unexpected data behind the table");
+            }
+
+            buffer.position(buffer.position() + length);
+            return table;
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new EOFException();
+        }
+    }
+
+    // Checks magic and version and returns the length of the body
+    private static int readHeader(ByteBuffer buffer) throws IOException
+    {
+        for (byte b : MAGIC)
+        {
+            if (buffer.get() != b)
+            {
+                throw new StreamCorruptedException("Not an encoded ReplacementTable");
+            }
+        }
+
+        int version = buffer.get();
+        if (version != VERSION)
+        {
+            throw new StreamCorruptedException("Unsupported version: " + version);
+        }
+
+        int length = buffer.getInt();
+        if (length < 0 || length > MAX_COUNT)
+        {
+            throw new StreamCorruptedException("Invalid length: " + length);
+        }
+
+        return length;
+    }
+
+    // Decodes everything behind the header
+    private static ReplacementTable decodeBody(ByteBuffer in) throws IOException
+    {
+        try
+        {
+            int flags = readVarint(in);
+
+            // Dictionary
+            String[] dictionary = new String[readCount(in)];
+            for (int i = 0; i < dictionary.length; i++)
+            {
+                int length = readCount(in);
+                if (length > in.remaining())
+                {
+                    throw new EOFException();
+                }
+
+                // Decode straight from the backing array if there is one
+                String string;
+                if (in.hasArray())
+                {
+                    string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+                    in.position(in.position() + length);
+                }
+                else
+                {
+                    string = readString(in, length);
+                }
+
+                // Share the values with all other tables
+                dictionary[i] = StringPool.SHARED.get(string);
+            }
+
+            // Bonus data
+            Grade grade = null;
+            if ((flags & FLAG_GRADE) != 0)
+            {
+                String name = readString(in, dictionary);
+                grade = Grade.parse(name);
+                if (grade == null)
+                {
+                    throw new StreamCorruptedException("Unknown grade: " + name);
+                }
+            }
+
+            Calendar downloadDate = null;
+            if ((flags & FLAG_DOWNLOAD_DATE) != 0)
+            {
+                TimeZone timeZone = TimeZone.getTimeZone(readString(in, dictionary));
+                downloadDate = Calendar.getInstance(timeZone);
+                downloadDate.setTimeInMillis(unZigZag(readVarlong(in)));
+            }
+
+            String[] dates = readStrings(in, dictionary);
+            String[] days = readStrings(in, dictionary);
+
+            // Replacements and messages
+            int replacementCount = readCount(in);
+            ArrayList<Replacement> replacements = new ArrayList<>(Math.min(replacementCount, in.remaining()));
+            for (int i = 0; i < replacementCount; i++)
+            {
+                replacements.add(Replacement.Builder.fromData(readRow(in, dictionary, REPLACEMENT_WIDTH)).create());
+            }
+
+            int messageCount = readCount(in);
+            ArrayList<Message> messages = new ArrayList<>(Math.min(messageCount, in.remaining()));
+            for (int i = 0; i < messageCount; i++)
+            {
+                messages.add(Message.Builder.fromData(readRow(in, dictionary, MESSAGE_WIDTH)).create());
+            }
+
+            ReplacementTable table = new ReplacementTable(replacements, messages, dates, days, grade, downloadDate);
+            table.setStale((flags & FLAG_STALE) != 0);
+            return table;
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new EOFException();
+        }
+    }
+
+    // Reads an UTF-8 string from a buffer without accessible array
+    private static String readString(ByteBuffer in, int length)
+    {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Writes the dictionary indexes of the strings (0 = null, otherwise index + 1)
+    private static void writeStrings(Output out, Dictionary dictionary, String[] strings)
+    {
+        out.writeVarint(strings.length);
+        for (String string : strings)
+        {
+            out.writeVarint(string == null ? 0 : dictionary.indexOf(string) + 1);
+        }
+    }
+
+    // Reads strings written by writeStrings()
+    private static String[] readStrings(ByteBuffer in, String[] dictionary) throws IOException
+    {
+        String[] strings = new String[readCount(in)];
+        for (int i = 0; i < strings.length; i++)
+        {
+            int index = readVarint(in);
+            if (index > dictionary.length)
+            {
+                throw new StreamCorruptedException("Invalid string reference: " + index);
+            }
+
+            strings[i] = index == 0 ? null : dictionary[index - 1];
+        }
+
+        return strings;
+    }
+
+    // Reads the fields of a replacement or message and checks their number
+    private static String[] readRow(ByteBuffer in, String[] dictionary, int width) throws IOException
+    {
+        String[] row = readStrings(in, dictionary);
+        if (row.length != width)
+        {
+            throw new StreamCorruptedException("Invalid number of fields: " + row.length);
+        }
+
+        return row;
+    }
+
+    // Reads a single, not null dictionary reference
+    private static String readString(ByteBuffer in, String[] dictionary) throws IOException
+    {
+        int index = readVarint(in);
+        if (index >= dictionary.length)
+        {
+            throw new StreamCorruptedException("Invalid string reference: " + index);
+        }
+
+        return dictionary[index];
+    }
+
+    // Reads an unsigned varint
+    static int readVarint(ByteBuffer in) throws IOException
+    {
+        long value = readVarlong(in);
+        if (value > Integer.MAX_VALUE || value < 0)
+        {
+            throw new StreamCorruptedException("Varint too large");
+        }
+
+        return (int) value;
+    }
+
+    // Reads an unsigned 64 bit varint
+    static long readVarlong(ByteBuffer in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    // Reads a count or length and checks it for plausibility
+    private static int readCount(ByteBuffer in) throws IOException
+    {
+        int count = readVarint(in);
+        if (count > MAX_COUNT)
+        {
+            throw new StreamCorruptedException("Invalid count: " + count);
+        }
+
+        return count;
+    }
+
+    // Fills the array completely
+    private static void readFully(InputStream in, byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read == -1)
+            {
+                throw new EOFException();
+            }
+
+            offset += read;
+        }
+    }
+
+    // Maps signed values to unsigned ones, so small negative numbers stay small
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Writes directly into a buffer, which grows if it belongs to the codec
+    private static final class Output
+    {
+        private final boolean growable;
+        private ByteBuffer buffer;
+
+        Output(ByteBuffer buffer, boolean growable)
+        {
+            this.buffer = buffer;
+            this.growable = growable;
+        }
+
+        // Makes room for the bytes, a buffer of the caller throws a BufferOverflowException when it is written
+        private void ensureRemaining(int bytes)
+        {
+            if (growable && buffer.remaining() < bytes)
+            {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        // Skips 4 bytes, which are filled in later, and returns their position
+        int reserveInt()
+        {
+            ensureRemaining(4);
+            int position = buffer.position();
+            buffer.putInt(0);
+            return position;
+        }
+
+        void writeBytes(byte[] bytes)
+        {
+            ensureRemaining(bytes.length);
+            buffer.put(bytes);
+        }
+
+        // Writes an unsigned varint (7 bits per byte, least significant group first)
+        void writeVarint(int value)
+        {
+            ensureRemaining(5);
+            while ((value & ~0x7F) != 0)
+            {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            buffer.put((byte) value);
+        }
+
+        // Writes an unsigned 64 bit varint
+        void writeVarlong(long value)
+        {
+            ensureRemaining(10);
+            while ((value & ~0x7FL) != 0)
+            {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            buffer.put((byte) value);
+        }
+    }
+
+    // String dictionary of one table, keeps the insertion order
+    private static final class Dictionary
+    {
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> indexes = new HashMap<>();
+
+        void add(String string)
+        {
+            if (string != null && !indexes.containsKey(string))
+            {
+                indexes.put(string, strings.size());
+                strings.add(string);
+            }
+        }
+
+        void addAll(String[] strings)
+        {
+            for (String string : strings)
+            {
+                add(string);
+            }
+        }
+
+        int indexOf(String string)
+        {
+            return indexes.get(string);
+        }
+    }
+}
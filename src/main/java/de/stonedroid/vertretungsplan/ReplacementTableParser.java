@@ -0,0 +1,759 @@
+package de.stonedroid.vertretungsplan;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Intern single-pass parser which walks the html of a replacement page once and feeds
+ * date headers, replacement cells and message texts directly into the builders.
+ * In sections-only mode only the grade and the date headers are read, rows and messages are skipped.
+ */
+final class ReplacementTableParser
+{
+    // Keywords the parser is looking for (see parseLine() for their meaning)
+    private static final String GRADE_KEYWORD = "<BR>";
+    private static final String DATE_KEYWORD = "<b>";
+    private static final String ROW_ODD_KEYWORD = "list odd";
+    private static final String ROW_EVEN_KEYWORD = "list even";
+    private static final String MESSAGE_KEYWORD = "rules";
+    private static final String MESSAGE_END_KEYWORD = "</table>";
+
+    // Cells of a replacement row are separated by one of these two variants
+    private static final String CELL_SEPARATOR = "</td><td class=\"list\"";
+    private static final String CELL_SEPARATOR_ALIGN = " align=\"center\">";
+    private static final String ROW_END = "</td></tr>";
+    private static final String NBSP = "&nbsp;";
+    private static final String EMPTY_CELL = "---";
+    private static final String GRADE_PREFIX = "Klasse";
+
+    // Html entities which are decoded by the tag stripper (numeric entities are decoded as well)
+    private static final String[] ENTITY_NAMES = {
+            "nbsp", "amp", "lt", "gt", "quot", "apos",
+            "auml", "ouml", "uuml", "Auml", "Ouml", "Uuml", "szlig"
+    };
+    private static final char[] ENTITY_CHARS = {
+            ' ', '&', '<', '>', '"', '\'',
+            'ä', 'ö', 'ü', 'Ä', 'Ö', 'Ü', 'ß'
+    };
+    // Longest entity we try to decode, e.g. "&#x10FFFF;"
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    // Initial size of the buffer used to read from a Reader
+    private static final int BUFFER_SIZE = 8192;
+
+    // A replacement row contains 7 cells (the day is not part of the row)
+    private static final int CELL_COUNT = 7;
+
+    // Grade used to check the validity of the page, can be null
+    private final Grade grade;
+    // Whether replacements and messages are skipped
+    private final boolean sectionsOnly;
+
+    // Collectors for the results
+    private final ArrayList<Replacement> replacements = new ArrayList<>();
+    private final ArrayList<Message> messages = new ArrayList<>();
+    private final ArrayList<String> allDates = new ArrayList<>();
+    private final ArrayList<String> allDays = new ArrayList<>();
+
+    // Current state of the parser
+    private String currentDate = "";
+    private String currentDay = "";
+    private boolean inMessage = false;
+    private boolean skipLine = false;
+
+    // Reused for every row and every message, create() always copies the data
+    private final Replacement.Builder replacementBuilder = new Replacement.Builder();
+    private final String[] cells = new String[CELL_COUNT];
+    private final StringBuilder messageHtmlBuilder = new StringBuilder();
+    private final StringBuilder messageTextBuilder = new StringBuilder();
+    private final StringBuilder gradeBuilder = new StringBuilder();
+
+    ReplacementTableParser(Grade grade)
+    {
+        this(grade, false);
+    }
+
+    ReplacementTableParser(Grade grade, boolean sectionsOnly)
+    {
+        this.grade = grade;
+        this.sectionsOnly = sectionsOnly;
+    }
+
+    /**
+     * Parses the whole html page line by line without splitting it into separate strings
+     *
+     * @param html Html of a replacement page
+     * @return Current parser
+     * @throws WebException The page belongs to another grade
+     */
+    ReplacementTableParser parse(CharSequence html) throws WebException
+    {
+        int length = html.length();
+        int start = 0;
+
+        while (start < length)
+        {
+            int end = indexOf(html, '\n', start, length);
+            int next = end + 1;
+            if (end == -1)
+            {
+                end = length;
+                next = length;
+            }
+
+            parseLine(html, start, lineEnd(html, start, end));
+            start = next;
+        }
+
+        return this;
+    }
+
+    /**
+     * Parses the html page while it is read from the reader. Only the current chunk and the
+     * current (incomplete) line are held in memory.
+     *
+     * @param reader Reader providing the html of a replacement page
+     * @return Current parser
+     * @throws IOException Couldn't read from reader
+     * @throws WebException The page belongs to another grade
+     */
+    ReplacementTableParser parse(Reader reader) throws IOException, WebException
+    {
+        char[] buffer = new char[BUFFER_SIZE];
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        // Number of chars in the buffer, start of the current line and position to continue the search for '\n'
+        int length = 0;
+        int start = 0;
+        int searchFrom = 0;
+        int read;
+
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1)
+        {
+            length += read;
+            int end;
+            while ((end = indexOf(chars, '\n', searchFrom, length)) != -1)
+            {
+                parseLine(chars, start, lineEnd(chars, start, end));
+                start = end + 1;
+                searchFrom = start;
+            }
+
+            searchFrom = length;
+            if (start > 0)
+            {
+                // Move the incomplete line to the front of the buffer
+                System.arraycopy(buffer, start, buffer, 0, length - start);
+                length -= start;
+                searchFrom -= start;
+                start = 0;
+            }
+            else if (length == buffer.length)
+            {
+                // The line doesn't fit into the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                chars = CharBuffer.wrap(buffer);
+            }
+        }
+
+        if (start < length)
+        {
+            parseLine(chars, start, lineEnd(chars, start, length));
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the parsed data in a typed holder
+     *
+     * @return Replacements, messages, dates and days of the page
+     */
+    Page toPage()
+    {
+        return new Page(replacements, messages, allDates.toArray(new String[0]), allDays.toArray(new String[0]));
+    }
+
+    // Returns the end of the line without a trailing '\r' (support "\r\n" line separators)
+    private static int lineEnd(CharSequence src, int start, int end)
+    {
+        return end > start && src.charAt(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    /**
+     * Returns the parsed data in the format expected by the ReplacementTable
+     *
+     * @return Object[] = {ArrayList&lt;Replacement&gt;, ArrayList&lt;Message&gt;, String[], String[]}
+     */
+    Object[] toResults()
+    {
+        String[] dates = allDates.toArray(new String[0]);
+        String[] days = allDays.toArray(new String[0]);
+        return new Object[] {replacements, messages, dates, days};
+    }
+
+    // Parses one line of the page, which is located between start (inclusive) and end (exclusive)
+    void parseLine(CharSequence src, int start, int end) throws WebException
+    {
+        if (skipLine)
+        {
+            // The line after the "rules" line only contains the message header
+            skipLine = false;
+            return;
+        }
+
+        // -----------------------------------------------
+        // --- Check validity of this ReplacementTable ---
+        // -----------------------------------------------
+        // The server stores all replacements for about 1 year
+        // Sometimes this old replacements collide with the new ones, consider this example:
+        // ReplacementTable of Grade 11 - Week 1:
+        //     Real Grade: 11
+        // ReplacementTable of Grade 11 - Week 2:
+        //     Real Grade: 12 <- why? | That's because new grades were added and so the whole grade list shifted
+        //                              one up.
+        // To check the validity of the current ReplacementTable, we just have to check the grade embedded in
+        // the HTML code. If it equals our given grade, it's valid. If not then not.
+        // Unique keyword for the line containing the grade: "<BR>"
+
+        if (grade != null && indexOf(src, GRADE_KEYWORD, start, end) != -1)
+        {
+            checkGrade(src, start, end);
+        }
+
+        // -----------------------------
+        // --- Retrieve current date ---
+        // -----------------------------
+        // Messages in html code have no property or attribute which indicates its
+        // current date, but luckily the html itself contains lines which are easily parsable.
+        // Some lines contain the current day names within <b> tags. The <b> tags also only appear
+        // at this places, so they are unique and save to parse.
+
+        if (!inMessage)
+        {
+            int dateStart = indexOf(src, DATE_KEYWORD, start, end);
+            if (dateStart != -1)
+            {
+                parseDate(src, dateStart + DATE_KEYWORD.length(), end);
+                return;
+            }
+        }
+
+        // -----------------------------
+        // --- Retrieve replacements ---
+        // -----------------------------
+        // All replacements are stored in table rows (<tr>) with the class "list odd" or "list even".
+        // (there are different classes because they need to rendered with different colors)
+        // The goal is to read each table data in this table row and pass it to our Replacement.Builder to create
+        // a java object based on the html file.
+
+        if (indexOf(src, ROW_ODD_KEYWORD, start, end) != -1 || indexOf(src, ROW_EVEN_KEYWORD, start, end) != -1)
+        {
+            if (!sectionsOnly)
+            {
+                parseReplacement(src, start, end);
+            }
+
+            return;
+        }
+
+        // -------------------------
+        // --- Retrieve messages ---
+        // -------------------------
+        // All messages are located in tables with the attribute "rules", which is a parse-safe keyword.
+        // Goal is to extract the message from the second table row of the table and pass it to our Message.Builder
+        // to create a java object based on the html file.
+
+        if (inMessage)
+        {
+            if (indexOf(src, MESSAGE_END_KEYWORD, start, end) != -1)
+            {
+                // The message text ends here
+                // The same message appears on the pages of all grades, so its text is only extracted once
+                inMessage = false;
+                if (!sectionsOnly)
+                {
+                    messages.add(MessageStore.SHARED.get(currentDate, currentDay, messageHtmlBuilder,
+                            this::parseMessageText));
+                    messageHtmlBuilder.setLength(0);
+                }
+            }
+            else if (!sectionsOnly)
+            {
+                // Collect the raw lines, they are only cleaned if the message is new
+                messageHtmlBuilder.append(src, start, end).append('\n');
+            }
+
+            return;
+        }
+
+        if (indexOf(src, MESSAGE_KEYWORD, start, end) != -1)
+        {
+            // Following lines (except the next one) belong to the message text
+            inMessage = true;
+            skipLine = true;
+        }
+    }
+
+    // Compares the grade embedded in the page with our grade
+    private void checkGrade(CharSequence src, int start, int end) throws WebException
+    {
+        gradeBuilder.setLength(0);
+        stripHtmlTags(src, start, end, gradeBuilder, false);
+
+        // Remove all spaces and the "Klasse" prefix
+        int write = 0;
+        for (int read = 0; read < gradeBuilder.length(); read++)
+        {
+            char c = gradeBuilder.charAt(read);
+            if (c != ' ')
+            {
+                gradeBuilder.setCharAt(write++, c);
+            }
+        }
+
+        gradeBuilder.setLength(write);
+        int prefix;
+        while ((prefix = gradeBuilder.indexOf(GRADE_PREFIX)) != -1)
+        {
+            gradeBuilder.delete(prefix, prefix + GRADE_PREFIX.length());
+        }
+
+        Grade _grade = Grade.parse(gradeBuilder.toString());
+        if (_grade == null || !_grade.equals(grade))
+        {
+            // Interrupt parsing and raise exception
+            throw new WebException("Corrupted data");
+        }
+    }
+
+    // Reads "<b>date day</b>" where start points right behind the "<b>"
+    private void parseDate(CharSequence src, int start, int end)
+    {
+        int dateEnd = indexOf(src, ' ', start, end);
+        currentDate = StringPool.SHARED.get(src, start, dateEnd);
+        int dayEnd = indexOf(src, "</", dateEnd + 1, end);
+        currentDay = trimmed(src, dateEnd + 1, dayEnd);
+        // Add new date/day to global dates field
+        allDates.add(currentDate);
+        allDays.add(currentDay);
+    }
+
+    // Reads the cells of a replacement row and builds a replacement out of them
+    private void parseReplacement(CharSequence src, int start, int end) throws WebException
+    {
+        // Skip everything from '<tr..' until the '">' of the first cell
+        int pos = indexOf(src, "\">", start, end) + 2;
+        int count = 0;
+
+        while (count < CELL_COUNT)
+        {
+            int separator = indexOf(src, CELL_SEPARATOR, pos, end);
+            int next = -1;
+
+            // Only accept the two known cell separators
+            while (separator != -1)
+            {
+                int afterSeparator = separator + CELL_SEPARATOR.length();
+                if (afterSeparator < end && src.charAt(afterSeparator) == '>')
+                {
+                    next = afterSeparator + 1;
+                    break;
+                }
+                else if (regionMatches(src, afterSeparator, end, CELL_SEPARATOR_ALIGN))
+                {
+                    next = afterSeparator + CELL_SEPARATOR_ALIGN.length();
+                    break;
+                }
+
+                separator = indexOf(src, CELL_SEPARATOR, afterSeparator, end);
+            }
+
+            if (separator == -1)
+            {
+                // Last cell: remove the closing tags of the row
+                int cellEnd = end;
+                if (endsWith(src, pos, cellEnd, ROW_END))
+                {
+                    cellEnd -= ROW_END.length();
+                }
+
+                cells[count++] = cell(src, pos, cellEnd);
+                break;
+            }
+
+            cells[count++] = cell(src, pos, separator);
+            pos = next;
+        }
+
+        if (count < CELL_COUNT)
+        {
+            throw new WebException("Corrupted data");
+        }
+
+        // Remove brackets from grade data (not occurring all the time)
+        String grade = cells[1];
+        if (grade.indexOf('(') != -1 || grade.indexOf(')') != -1)
+        {
+            grade = StringPool.SHARED.get(grade.replace("(", "").replace(")", ""));
+        }
+
+        // Remove " R" at the end of a room
+        String room = cells[4];
+        if (room.endsWith(" R"))
+        {
+            room = StringPool.SHARED.get(room, 0, room.length() - 2);
+        }
+
+        // Add (forgotten?) "fällt aus" if new room and new subject are empty
+        String text = cells[6];
+        if (cells[3].equals(EMPTY_CELL) && room.equals(EMPTY_CELL) && text.equals(EMPTY_CELL))
+        {
+            text = "fällt aus";
+        }
+
+        Replacement replacement = replacementBuilder
+                .setDate(cells[0])
+                .setDay(currentDay)
+                .setGrade(grade)
+                .setPeriod(cells[2])
+                .setSubject(cells[3])
+                .setRoom(room)
+                .setOldSubject(cells[5])
+                .setText(text)
+                .create();
+        replacements.add(replacement);
+    }
+
+    // Returns the (pooled) content of a cell with "&nbsp;" replaced by "---"
+    private static String cell(CharSequence src, int start, int end)
+    {
+        int nbsp = indexOf(src, NBSP, start, end);
+        if (nbsp == -1)
+        {
+            return StringPool.SHARED.get(src, start, end);
+        }
+        else if (nbsp == start && end - start == NBSP.length())
+        {
+            // Most common case: the whole cell is empty
+            return EMPTY_CELL;
+        }
+
+        StringBuilder builder = new StringBuilder(end - start);
+        while (nbsp != -1)
+        {
+            builder.append(src, start, nbsp).append(EMPTY_CELL);
+            start = nbsp + NBSP.length();
+            nbsp = indexOf(src, NBSP, start, end);
+        }
+
+        return StringPool.SHARED.get(builder.append(src, start, end).toString());
+    }
+
+    // Cleans all lines of a message block
+    private String parseMessageText(CharSequence html)
+    {
+        messageTextBuilder.setLength(0);
+        int start = 0;
+        int end;
+        while ((end = indexOf(html, '\n', start, html.length())) != -1)
+        {
+            appendMessageLine(html, start, end);
+            start = end + 1;
+        }
+
+        return messageTextBuilder.toString();
+    }
+
+    // Cleans one line of a message and appends it to the message text
+    private void appendMessageLine(CharSequence src, int start, int end)
+    {
+        // Strip the line directly into the message text and clean up the appended part afterwards
+        int mark = messageTextBuilder.length();
+        stripHtmlTags(src, start, end, messageTextBuilder, true);
+
+        // Trim the appended part
+        int from = mark;
+        int to = messageTextBuilder.length();
+        while (from < to && messageTextBuilder.charAt(from) <= ' ')
+        {
+            from++;
+        }
+
+        while (to > from && messageTextBuilder.charAt(to - 1) <= ' ')
+        {
+            to--;
+        }
+
+        // Remove double spaces ("  " -> " ") while moving the text to the mark
+        int write = mark;
+        int spaces = 0;
+        for (int read = from; read < to; read++)
+        {
+            char c = messageTextBuilder.charAt(read);
+            if (c == ' ')
+            {
+                spaces++;
+                if (spaces % 2 == 0)
+                {
+                    continue;
+                }
+            }
+            else
+            {
+                spaces = 0;
+            }
+
+            messageTextBuilder.setCharAt(write++, c);
+        }
+
+        messageTextBuilder.setLength(write);
+    }
+
+    /**
+     * Removes all html tags in text and decodes html entities
+     *
+     * @param text Text containing html
+     * @return Text without html tags
+     */
+    static String removeHtmlTags(String text)
+    {
+        StringBuilder builder = new StringBuilder(text.length());
+        stripHtmlTags(text, 0, text.length(), builder, false);
+        return builder.toString();
+    }
+
+    /**
+     * Appends the region between start and end to out in one pass, skipping html tags and
+     * decoding html entities. A '&lt;' without closing '&gt;' and a stray '&gt;' are kept as text.
+     *
+     * @param src Source containing html
+     * @param start Start of the region (inclusive)
+     * @param end End of the region (exclusive)
+     * @param out Buffer which receives the text
+     * @param breaks Whether "&lt;br&gt;" tags become line breaks (directly following ones are merged)
+     */
+    static void stripHtmlTags(CharSequence src, int start, int end, StringBuilder out, boolean breaks)
+    {
+        boolean lastWasBreak = false;
+        int i = start;
+
+        while (i < end)
+        {
+            char c = src.charAt(i);
+            if (c == '<')
+            {
+                int close = indexOf(src, '>', i + 1, end);
+                if (close == -1)
+                {
+                    // Not a tag, keep the rest as it is
+                    out.append(src, i, end);
+                    return;
+                }
+
+                if (breaks && isBreakTag(src, i + 1, close))
+                {
+                    if (!lastWasBreak)
+                    {
+                        out.append('\n');
+                    }
+
+                    lastWasBreak = true;
+                }
+                else
+                {
+                    lastWasBreak = false;
+                }
+
+                i = close + 1;
+            }
+            else if (c == '&')
+            {
+                i = appendEntity(src, i, end, out);
+                lastWasBreak = false;
+            }
+            else
+            {
+                out.append(c);
+                i++;
+                lastWasBreak = false;
+            }
+        }
+    }
+
+    // Checks whether the tag content between start and end is "br", "br/" or "br /"
+    private static boolean isBreakTag(CharSequence src, int start, int end)
+    {
+        while (end > start && (src.charAt(end - 1) == '/' || src.charAt(end - 1) == ' '))
+        {
+            end--;
+        }
+
+        return end - start == 2
+                && Character.toLowerCase(src.charAt(start)) == 'b'
+                && Character.toLowerCase(src.charAt(start + 1)) == 'r';
+    }
+
+    // Decodes the entity at start ('&') into out and returns the index after it.
+    // Unknown entities are kept as they are.
+    private static int appendEntity(CharSequence src, int start, int end, StringBuilder out)
+    {
+        int semicolon = indexOf(src, ';', start + 1, Math.min(end, start + MAX_ENTITY_LENGTH));
+        if (semicolon != -1)
+        {
+            int nameStart = start + 1;
+            if (semicolon > nameStart + 1 && src.charAt(nameStart) == '#')
+            {
+                int codePoint = parseCodePoint(src, nameStart + 1, semicolon);
+                if (codePoint != -1)
+                {
+                    out.appendCodePoint(codePoint);
+                    return semicolon + 1;
+                }
+            }
+            else
+            {
+                for (int i = 0; i < ENTITY_NAMES.length; i++)
+                {
+                    String name = ENTITY_NAMES[i];
+                    if (semicolon - nameStart == name.length() && regionMatches(src, nameStart, semicolon, name))
+                    {
+                        out.append(ENTITY_CHARS[i]);
+                        return semicolon + 1;
+                    }
+                }
+            }
+        }
+
+        out.append('&');
+        return start + 1;
+    }
+
+    // Parses "123" or "x7B" and returns the code point or -1 if invalid
+    private static int parseCodePoint(CharSequence src, int start, int end)
+    {
+        int radix = 10;
+        if (src.charAt(start) == 'x' || src.charAt(start) == 'X')
+        {
+            radix = 16;
+            start++;
+        }
+
+        if (start == end)
+        {
+            return -1;
+        }
+
+        int codePoint = 0;
+        for (int i = start; i < end; i++)
+        {
+            int digit = Character.digit(src.charAt(i), radix);
+            if (digit == -1)
+            {
+                return -1;
+            }
+
+            codePoint = codePoint * radix + digit;
+            if (codePoint > Character.MAX_CODE_POINT)
+            {
+                return -1;
+            }
+        }
+
+        return codePoint;
+    }
+
+    // Returns the trimmed region as (pooled) string
+    private static String trimmed(CharSequence src, int start, int end)
+    {
+        while (start < end && src.charAt(start) <= ' ')
+        {
+            start++;
+        }
+
+        while (end > start && src.charAt(end - 1) <= ' ')
+        {
+            end--;
+        }
+
+        return StringPool.SHARED.get(src, start, end);
+    }
+
+    // indexOf(char) limited to the region between from and end
+    static int indexOf(CharSequence src, char c, int from, int end)
+    {
+        for (int i = from; i < end; i++)
+        {
+            if (src.charAt(i) == c)
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // indexOf(String) limited to the region between from and end
+    static int indexOf(CharSequence src, String pattern, int from, int end)
+    {
+        char first = pattern.charAt(0);
+        int last = end - pattern.length();
+
+        for (int i = from; i <= last; i++)
+        {
+            if (src.charAt(i) == first && regionMatches(src, i, end, pattern))
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // Checks whether the pattern is located at offset without crossing end
+    static boolean regionMatches(CharSequence src, int offset, int end, String pattern)
+    {
+        if (offset + pattern.length() > end)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < pattern.length(); i++)
+        {
+            if (src.charAt(offset + i) != pattern.charAt(i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Checks whether the region between start and end ends with the pattern
+    private static boolean endsWith(CharSequence src, int start, int end, String pattern)
+    {
+        int offset = end - pattern.length();
+        return offset >= start && regionMatches(src, offset, end, pattern);
+    }
+
+    /**
+     * Parsed data of a page
+     */
+    static final class Page
+    {
+        final ArrayList<Replacement> replacements;
+        final ArrayList<Message> messages;
+        final String[] dates;
+        final String[] days;
+
+        Page(ArrayList<Replacement> replacements, ArrayList<Message> messages, String[] dates, String[] days)
+        {
+            this.replacements = replacements;
+            this.messages = messages;
+            this.dates = dates;
+            this.days = days;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls ReplacementTables periodically and notifies listeners about changes.
+ * <p>
+ * All watchers share one scheduler thread, the downloads run on the executor of ReplacementTable.
+ * The polls of the watched tables are spread evenly across the interval, so the server doesn't get
+ * all requests at once. The interval is either fixed or decided per table by a PollingSchedule.
+ * Every new snapshot is compared with the previous one and the listeners are only
+ * called if something has changed. The first snapshot of a table is taken as the starting point.
+ */
+public class ReplacementTableWatcher
+{
+    private final TableLoader loader;
+    private final PollingSchedule schedule;
+    private final List<OnTableChangedListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Watched tables in the order they were added, guarded by this
+    private final LinkedHashMap<Key, Target> targets = new LinkedHashMap<>();
+    private boolean running;
+    // Incremented by stop(), so polls of a previous run don't reschedule themselves after a restart
+    private int generation;
+
+    /**
+     * Creates a watcher which downloads the tables with ReplacementTable.downloadTable()
+     *
+     * @param interval Time between two polls of the same table
+     * @param unit Unit of interval
+     */
+    public ReplacementTableWatcher(long interval, TimeUnit unit)
+    {
+        this(ReplacementTable::downloadTable, interval, unit);
+    }
+
+    /**
+     * Creates a watcher which loads the tables with the given loader
+     *
+     * @param loader Loader used for every poll, e.g. a ReplacementTableCache
+     * @param interval Time between two polls of the same table
+     * @param unit Unit of interval
+     */
+    public ReplacementTableWatcher(TableLoader loader, long interval, TimeUnit unit)
+    {
+        this(loader, PollingSchedule.fixed(interval, unit));
+    }
+
+    /**
+     * Creates a watcher which loads the tables with the given loader and asks the schedule
+     * for the time until the next poll, e.g. an AdaptivePollingSchedule
+     *
+     * @param loader Loader used for every poll, e.g. a ReplacementTableCache
+     * @param schedule Decides the delay between two polls of a table
+     */
+    public ReplacementTableWatcher(TableLoader loader, PollingSchedule schedule)
+    {
+        this.loader = loader;
+        this.schedule = Objects.requireNonNull(schedule);
+    }
+
+    /**
+     * Adds a listener which is called on changes of any watched table
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(OnTableChangedListener listener)
+    {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Removes a previously added listener
+     *
+     * @param listener Listener to remove
+     */
+    public void removeListener(OnTableChangedListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts watching the table of the grade for the current week
+     *
+     * @param grade Grade to watch
+     */
+    public void watch(Grade grade)
+    {
+        watch(grade, 0);
+    }
+
+    /**
+     * Starts watching the table (with week offset) of the grade.
+     * Watching the same table twice has no effect.
+     *
+     * @param grade Grade to watch
+     * @param plusWeeks Week offset (default is 0)
+     */
+    public synchronized void watch(Grade grade, int plusWeeks)
+    {
+        Key key = new Key(grade, plusWeeks);
+        if (!targets.containsKey(key))
+        {
+            Target target = new Target(key);
+            targets.put(key, target);
+            if (running)
+            {
+                // Polls of the other tables are already spread, so a random offset disturbs them the least
+                schedule(target, ThreadLocalRandom.current().nextLong(getFirstDelay(target)));
+            }
+        }
+    }
+
+    /**
+     * Starts watching the tables of all grades for all week offsets
+     *
+     * @param grades Grades to watch
+     * @param weeks Week offsets to watch for every grade
+     */
+    public synchronized void watchAll(Collection<Grade> grades, Collection<Integer> weeks)
+    {
+        for (Grade grade : grades)
+        {
+            for (int plusWeeks : weeks)
+            {
+                watch(grade, plusWeeks);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the table (with week offset) of the grade
+     *
+     * @param grade Watched grade
+     * @param plusWeeks Watched week offset
+     */
+    public synchronized void unwatch(Grade grade, int plusWeeks)
+    {
+        Target target = targets.remove(new Key(grade, plusWeeks));
+        if (target != null)
+        {
+            target.cancel();
+        }
+    }
+
+    /**
+     * Starts polling. The polls of all watched tables are spread across the interval.
+     */
+    public synchronized void start()
+    {
+        if (running)
+        {
+            return;
+        }
+
+        running = true;
+        int i = 0;
+        for (Target target : targets.values())
+        {
+            schedule(target, getFirstDelay(target) / targets.size() * i++);
+        }
+    }
+
+    /**
+     * Stops polling. Downloads which are already running are finished, but don't notify the listeners.
+     * The snapshots are kept, so a restarted watcher only reports changes which happened in the meantime.
+     */
+    public synchronized void stop()
+    {
+        running = false;
+        generation++;
+        for (Target target : targets.values())
+        {
+            if (target.future != null)
+            {
+                target.future.cancel(false);
+                target.future = null;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the watcher is polling
+     *
+     * @return Whether start() was called without calling stop() afterwards
+     */
+    public synchronized boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Returns the last snapshot of a watched table
+     *
+     * @param grade Watched grade
+     * @param plusWeeks Watched week offset
+     * @return Last downloaded table or null if it isn't watched or hasn't been downloaded yet
+     */
+    public synchronized ReplacementTable getSnapshot(Grade grade, int plusWeeks)
+    {
+        Target target = targets.get(new Key(grade, plusWeeks));
+        return target != null ? target.snapshot : null;
+    }
+
+    // Delay before the first poll of the target in nanoseconds
+    private long getFirstDelay(Target target)
+    {
+        long millis = schedule.nextDelay(target.key.grade, target.key.plusWeeks, System.currentTimeMillis(), false);
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(1, millis));
+    }
+
+    // Schedules the next poll of the target, must be called while holding the lock
+    private void schedule(Target target, long delayNanos)
+    {
+        int scheduledGeneration = generation;
+        target.nextRun = System.nanoTime() + delayNanos;
+        target.future = SharedExecutor.getScheduler().schedule(
+                // The scheduler thread only hands the download over to the executor
+                () -> SharedExecutor.get().execute(() -> poll(target, scheduledGeneration)),
+                delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Downloads the table, notifies the listeners and schedules the next poll
+    private void poll(Target target, int scheduledGeneration)
+    {
+        Key key = target.key;
+        boolean changed = false;
+        try
+        {
+            ReplacementTable table = loader.load(key.grade, key.plusWeeks);
+            TableDiff diff = null;
+
+            synchronized (this)
+            {
+                if (!isCurrent(target, scheduledGeneration))
+                {
+                    return;
+                }
+
+                ReplacementTable previous = target.snapshot;
+                target.snapshot = table;
+                // An unmodified page results in the same instance, nothing to compare then
+                if (previous != null && previous != table)
+                {
+                    diff = TableDiff.between(previous, table);
+                }
+            }
+
+            if (diff != null && !diff.isEmpty())
+            {
+                changed = true;
+                for (OnTableChangedListener listener : listeners)
+                {
+                    listener.onChanged(key.grade, key.plusWeeks, table, diff);
+                }
+            }
+        }
+        catch (WebException e)
+        {
+            for (OnTableChangedListener listener : listeners)
+            {
+                listener.onFailed(key.grade, key.plusWeeks, e);
+            }
+        }
+        finally
+        {
+            reschedule(target, scheduledGeneration, changed);
+        }
+    }
+
+    // The delay counts from the planned start of the last poll, so a slow download doesn't shift the following polls
+    private synchronized void reschedule(Target target, int scheduledGeneration, boolean changed)
+    {
+        if (isCurrent(target, scheduledGeneration))
+        {
+            long interval = schedule.nextDelay(target.key.grade, target.key.plusWeeks,
+                    System.currentTimeMillis(), changed);
+            long delay = target.nextRun + TimeUnit.MILLISECONDS.toNanos(Math.max(1, interval)) - System.nanoTime();
+            schedule(target, Math.max(0, delay));
+        }
+    }
+
+    // Whether a poll scheduled in the given generation is still wanted, must be called while holding the lock
+    private boolean isCurrent(Target target, int scheduledGeneration)
+    {
+        return running && generation == scheduledGeneration && !target.cancelled;
+    }
+
+    // Watched table
+    private static final class Key
+    {
+        private final Grade grade;
+        private final int plusWeeks;
+
+        Key(Grade grade, int plusWeeks)
+        {
+            this.grade = Objects.requireNonNull(grade);
+            this.plusWeeks = plusWeeks;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return grade.equals(other.grade) && plusWeeks == other.plusWeeks;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return grade.hashCode() * 31 + plusWeeks;
+        }
+    }
+
+    // Polling state of a watched table, guarded by the watcher
+    private static final class Target
+    {
+        private final Key key;
+        private ScheduledFuture<?> future;
+        // Planned start of the current poll (System.nanoTime())
+        private long nextRun;
+        private ReplacementTable snapshot;
+        private boolean cancelled;
+
+        Target(Key key)
+        {
+            this.key = key;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+            if (future != null)
+            {
+                future.cancel(false);
+                future = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how the downloader handles slow and failed requests.
+ * <p>
+ * Transient errors (i/o errors like timeouts or reset connections and the status codes 408, 429 and 5xx) are
+ * retried with exponential backoff. The backoff is randomized ("full jitter"), so clients which failed at the
+ * same time don't retry at the same time. No retry is started after the deadline has passed, and the connect
+ * and read timeouts of every attempt are limited to the time left until the deadline.
+ * <p>
+ * If hedging is enabled, a second request is sent when the first one takes longer than the given percentile
+ * of the recent request durations. The faster request wins, the other one is cancelled.
+ */
+public final class RetryPolicy
+{
+    // Three attempts within one minute, no hedging
+    public static final RetryPolicy DEFAULT = new Builder().create();
+    // Every request is only sent once
+    public static final RetryPolicy NONE = new Builder().setMaxAttempts(1).create();
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double multiplier;
+    private final long deadlineMillis;
+    private final double hedgePercentile;
+
+    private RetryPolicy(Builder builder)
+    {
+        maxAttempts = builder.maxAttempts;
+        initialBackoffMillis = builder.initialBackoffMillis;
+        maxBackoffMillis = builder.maxBackoffMillis;
+        multiplier = builder.multiplier;
+        deadlineMillis = builder.deadlineMillis;
+        hedgePercentile = builder.hedgePercentile;
+    }
+
+    /**
+     * Returns the maximum number of attempts of a request (hedged requests aren't counted)
+     *
+     * @return Maximum number of attempts
+     */
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the maximum backoff before the first retry
+     *
+     * @return Initial backoff in milliseconds
+     */
+    public long getInitialBackoffMillis()
+    {
+        return initialBackoffMillis;
+    }
+
+    /**
+     * Returns the upper bound of all backoffs
+     *
+     * @return Maximum backoff in milliseconds
+     */
+    public long getMaxBackoffMillis()
+    {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * Returns the factor the backoff grows with every retry
+     *
+     * @return Backoff multiplier
+     */
+    public double getMultiplier()
+    {
+        return multiplier;
+    }
+
+    /**
+     * Returns the time after which no further attempt is started and running attempts fail
+     *
+     * @return Deadline in milliseconds, measured from the start of the first attempt
+     */
+    public long getDeadlineMillis()
+    {
+        return deadlineMillis;
+    }
+
+    /**
+     * Returns the percentile of the recent request durations after which a hedged request is sent
+     *
+     * @return Percentile between 0 and 1 (0 = hedging disabled)
+     */
+    public double getHedgePercentile()
+    {
+        return hedgePercentile;
+    }
+
+    /**
+     * Returns whether hedged requests are sent
+     *
+     * @return Whether hedging is enabled
+     */
+    public boolean isHedging()
+    {
+        return hedgePercentile > 0;
+    }
+
+    /**
+     * Returns a random backoff before the given retry
+     *
+     * @param retry Number of the retry (1 = first retry)
+     * @return Backoff in milliseconds
+     */
+    long getBackoffMillis(int retry)
+    {
+        double bound = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, retry - 1));
+        return (long) (ThreadLocalRandom.current().nextDouble() * bound);
+    }
+
+    /**
+     * Returns whether a response with the status code should be retried
+     *
+     * @param statusCode Http status code
+     * @return Whether the status is transient
+     */
+    static boolean isTransient(int statusCode)
+    {
+        return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * Builder class to easily build a RetryPolicy object
+     */
+    public static class Builder
+    {
+        private int maxAttempts = 3;
+        private long initialBackoffMillis = 250;
+        private long maxBackoffMillis = 4000;
+        private double multiplier = 2;
+        private long deadlineMillis = TimeUnit.MINUTES.toMillis(1);
+        private double hedgePercentile = 0;
+
+        /**
+         * Sets the maximum number of attempts
+         *
+         * @param maxAttempts Maximum number of attempts (1 = no retries)
+         * @return Current Builder instance
+         */
+        public Builder setMaxAttempts(int maxAttempts)
+        {
+            if (maxAttempts < 1)
+            {
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            }
+
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Sets the backoff bounds
+         *
+         * @param initialBackoff Maximum backoff before the first retry
+         * @param maxBackoff Upper bound of all backoffs
+         * @param unit Unit of both backoffs
+         * @return Current Builder instance
+         */
+        public Builder setBackoff(long initialBackoff, long maxBackoff, TimeUnit unit)
+        {
+            if (initialBackoff < 0 || maxBackoff < initialBackoff)
+            {
+                throw new IllegalArgumentException("Backoffs must be positive and initialBackoff <= maxBackoff");
+            }
+
+            this.initialBackoffMillis = unit.toMillis(initialBackoff);
+            this.maxBackoffMillis = unit.toMillis(maxBackoff);
+            return this;
+        }
+
+        /**
+         * Sets the factor the backoff grows with every retry
+         *
+         * @param multiplier Backoff multiplier (at least 1)
+         * @return Current Builder instance
+         */
+        public Builder setMultiplier(double multiplier)
+        {
+            if (multiplier < 1)
+            {
+                throw new IllegalArgumentException("multiplier must be at least 1");
+            }
+
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * Sets the time after which no further attempt is started and running attempts fail
+         *
+         * @param deadline Deadline measured from the start of the first attempt
+         * @param unit Unit of deadline
+         * @return Current Builder instance
+         */
+        public Builder setDeadline(long deadline, TimeUnit unit)
+        {
+            this.deadlineMillis = unit.toMillis(deadline);
+            return this;
+        }
+
+        /**
+         * Enables hedged requests
+         *
+         * @param percentile Percentile of the recent request durations after which a second request is sent
+         *                   (e.g. 0.95), 0 disables hedging
+         * @return Current Builder instance
+         */
+        public Builder setHedgePercentile(double percentile)
+        {
+            if (percentile < 0 || percentile >= 1)
+            {
+                throw new IllegalArgumentException("percentile must be between 0 (inclusive) and 1 (exclusive)");
+            }
+
+            this.hedgePercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Creates a RetryPolicy object
+         *
+         * @return RetryPolicy object based on the data of this Builder
+         */
+        public RetryPolicy create()
+        {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.stonedroid.vertretungsplan;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Intern holder of the executor which runs all asynchronous downloads
+ * and of the scheduler which triggers periodic work
+ */
+final class SharedExecutor
+{
+    // Idle pool threads are stopped after this time
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Executor set by the user or created on first use
+    private static volatile Executor executor;
+
+    // Scheduler created on first use
+    private static volatile ScheduledExecutorService scheduler;
+
+    private SharedExecutor()
+    {
+    }
+
+    /**
+     * Returns the executor for asynchronous downloads and creates the default one if none is set
+     *
+     * @return Shared executor
+     */
+    static Executor get()
+    {
+        Executor current = executor;
+        if (current == null)
+        {
+            synchronized (SharedExecutor.class)
+            {
+                current = executor;
+                if (current == null)
+                {
+                    current = createDefault();
+                    executor = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Replaces the shared executor. The previous executor isn't shut down.
+     *
+     * @param newExecutor New executor or null to use the default one again
+     */
+    static void set(Executor newExecutor)
+    {
+        executor = newExecutor;
+    }
+
+    /**
+     * Returns the scheduler for periodic work and creates it if necessary.
+     * Its single thread only triggers tasks, long running work has to be passed to get().
+     *
+     * @return Shared scheduler
+     */
+    static ScheduledExecutorService getScheduler()
+    {
+        ScheduledExecutorService current = scheduler;
+        if (current == null)
+        {
+            synchronized (SharedExecutor.class)
+            {
+                current = scheduler;
+                if (current == null)
+                {
+                    ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1,
+                            new DaemonThreadFactory("vertretungsplan-scheduler-"));
+                    // Don't keep cancelled polls in the queue until their delay has passed
+                    pool.setRemoveOnCancelPolicy(true);
+                    current = pool;
+                    scheduler = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    // Uses virtual threads (Java 21+) if available, otherwise a bounded pool of daemon threads
+    static ExecutorService createDefault()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            // Virtual threads aren't available on this platform
+        }
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new DaemonThreadFactory("vertretungsplan-download-"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Creates named daemon threads, so the pool never keeps the JVM alive
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Intern pool of canonical field values (dates, days, grades, rooms, subjects, "---", ...).
+ * <p>
+ * The parser looks values up directly from the page region, so a value which was seen before
+ * is neither copied nor allocated again, and all tables share the same instances.
+ * Long values (e.g. message texts) aren't pooled.
+ * <p>
+ * The pool is split into segments with their own locks, so parsers running in parallel rarely wait
+ * for each other. Each segment keeps two generations of values: when the current generation is full,
+ * it becomes the previous one and the values of the old previous generation are dropped. Values which
+ * are still in use are moved to the current generation on their next lookup, so the pool keeps pooling
+ * new values and never holds more than twice its maximum size.
+ */
+final class StringPool
+{
+    // Pool shared by the parser and the codec
+    static final StringPool SHARED = new StringPool(1 << 16, 64);
+
+    // Default number of segments, always a power of 2
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final int maxLength;
+    private final Segment[] segments;
+
+    StringPool(int maxSize, int maxLength)
+    {
+        this(maxSize, maxLength, DEFAULT_SEGMENTS);
+    }
+
+    // Constructor with exchangeable number of segments (a power of 2) for junit testing
+    StringPool(int maxSize, int maxLength, int segmentCount)
+    {
+        if (Integer.bitCount(segmentCount) != 1)
+        {
+            throw new IllegalArgumentException("segmentCount must be a power of 2");
+        }
+
+        this.maxLength = maxLength;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            segments[i] = new Segment(Math.max(1, maxSize / segmentCount));
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the string
+     *
+     * @param string String to look up, can be null
+     * @return Canonical instance with the same content
+     */
+    String get(String string)
+    {
+        return string == null ? null : get(string, 0, string.length());
+    }
+
+    /**
+     * Returns the canonical instance of the region between start and end.
+     * A new string is only created if the value isn't pooled.
+     *
+     * @param src Source containing the value
+     * @param start Start of the region (inclusive)
+     * @param end End of the region (exclusive)
+     * @return Canonical string with the content of the region
+     */
+    String get(CharSequence src, int start, int end)
+    {
+        if (end - start > maxLength)
+        {
+            return src.subSequence(start, end).toString();
+        }
+
+        // Same hash function as String.hashCode(), so pooled strings use their cached hash
+        int hash = 0;
+        for (int i = start; i < end; i++)
+        {
+            hash = 31 * hash + src.charAt(i);
+        }
+
+        // The high bits choose the segment, the low bits the slot within the segment
+        Segment segment = segments[(hash * 0x9E3779B9) >>> 16 & (segments.length - 1)];
+        return segment.get(hash, src, start, end);
+    }
+
+    /**
+     * Returns the number of values in the current generations
+     *
+     * @return Size of the pool
+     */
+    int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    // Mixes the high bits into the low ones, which are used as slot
+    private static int spread(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean contentEquals(String string, CharSequence src, int start, int end)
+    {
+        if (string.length() != end - start)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < string.length(); i++)
+        {
+            if (string.charAt(i) != src.charAt(start + i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Part of the pool with its own lock
+    private static final class Segment
+    {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final int maxSize;
+
+        // Open addressing hash tables, their lengths are always a power of 2, guarded by this
+        private String[] current = new String[INITIAL_CAPACITY];
+        private String[] previous;
+        private int size;
+
+        Segment(int maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        synchronized String get(int hash, CharSequence src, int start, int end)
+        {
+            String string = find(current, hash, src, start, end);
+            if (string != null)
+            {
+                return string;
+            }
+
+            // Values of the previous generation which are still in use move to the current one
+            string = previous != null ? find(previous, hash, src, start, end) : null;
+            if (string == null)
+            {
+                string = src.subSequence(start, end).toString();
+            }
+
+            add(string);
+            return string;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        // Returns the pooled value of the region or null if the table doesn't contain it
+        private static String find(String[] table, int hash, CharSequence src, int start, int end)
+        {
+            int mask = table.length - 1;
+            int slot = spread(hash) & mask;
+            String candidate;
+            while ((candidate = table[slot]) != null)
+            {
+                if (candidate.hashCode() == hash && contentEquals(candidate, src, start, end))
+                {
+                    return candidate;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            return null;
+        }
+
+        // Adds the value to the current generation and starts a new generation if it is full
+        private void add(String string)
+        {
+            if (size >= maxSize)
+            {
+                previous = current;
+                current = new String[INITIAL_CAPACITY];
+                size = 0;
+            }
+
+            insert(current, string);
+            size++;
+            // Keep the load factor below 0.5
+            if (size * 2 > current.length)
+            {
+                String[] old = current;
+                current = new String[old.length * 2];
+                for (String value : old)
+                {
+                    if (value != null)
+                    {
+                        insert(current, value);
+                    }
+                }
+            }
+        }
+
+        private static void insert(String[] table, String string)
+        {
+            int mask = table.length - 1;
+            int slot = spread(string.hashCode()) & mask;
+            while (table[slot] != null)
+            {
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = string;
+        }
+    }
+}
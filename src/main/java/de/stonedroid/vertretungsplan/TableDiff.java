@@ -0,0 +1,330 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Differences between two snapshots of the same ReplacementTable.
+ * <p>
+ * Rows with equal content are matched by their hash first. The remaining rows are matched by their
+ * identity: a replacement whose room or text changed and a message whose text changed (on the same date)
+ * are reported as modified instead of removed and added. Both steps use hash maps, so a diff runs in linear time.
+ */
+public class TableDiff
+{
+    // Columns which may change while a replacement stays the same replacement
+    private static final boolean[] REPLACEMENT_VOLATILE_COLUMNS = columns(8,
+            ReplacementFilter.ROOM.ordinal(), ReplacementFilter.TEXT.ordinal());
+    // The text of a message may change, its date and day identify it
+    private static final boolean[] MESSAGE_VOLATILE_COLUMNS = columns(3, 2);
+
+    private final List<Replacement> addedReplacements;
+    private final List<Replacement> removedReplacements;
+    private final List<Modification<Replacement>> modifiedReplacements;
+    private final List<Message> addedMessages;
+    private final List<Message> removedMessages;
+    private final List<Modification<Message>> modifiedMessages;
+
+    private TableDiff(Matcher<Replacement> replacements, Matcher<Message> messages)
+    {
+        addedReplacements = Collections.unmodifiableList(replacements.added);
+        removedReplacements = Collections.unmodifiableList(replacements.removed);
+        modifiedReplacements = Collections.unmodifiableList(replacements.modified);
+        addedMessages = Collections.unmodifiableList(messages.added);
+        removedMessages = Collections.unmodifiableList(messages.removed);
+        modifiedMessages = Collections.unmodifiableList(messages.modified);
+    }
+
+    /**
+     * Computes the differences between an older and a newer snapshot of a table
+     *
+     * @param before Older snapshot
+     * @param after Newer snapshot
+     * @return Differences between both snapshots
+     */
+    public static TableDiff between(ReplacementTable before, ReplacementTable after)
+    {
+        Matcher<Replacement> replacements = new Matcher<>(before.getReplacementList(), after.getReplacementList(),
+                replacement -> replacement.data, REPLACEMENT_VOLATILE_COLUMNS);
+        Matcher<Message> messages = new Matcher<>(before.getMessages(), after.getMessages(),
+                message -> message.data, MESSAGE_VOLATILE_COLUMNS);
+        return new TableDiff(replacements, messages);
+    }
+
+    /**
+     * Returns whether both snapshots have the same content
+     *
+     * @return Whether nothing changed
+     */
+    public boolean isEmpty()
+    {
+        return addedReplacements.isEmpty() && removedReplacements.isEmpty() && modifiedReplacements.isEmpty()
+                && addedMessages.isEmpty() && removedMessages.isEmpty() && modifiedMessages.isEmpty();
+    }
+
+    /**
+     * Returns all replacements which only exist in the newer snapshot
+     *
+     * @return Added replacements
+     */
+    public List<Replacement> getAddedReplacements()
+    {
+        return addedReplacements;
+    }
+
+    /**
+     * Returns all replacements which only exist in the older snapshot
+     *
+     * @return Removed replacements
+     */
+    public List<Replacement> getRemovedReplacements()
+    {
+        return removedReplacements;
+    }
+
+    /**
+     * Returns all replacements whose room or text changed
+     *
+     * @return Modified replacements
+     */
+    public List<Modification<Replacement>> getModifiedReplacements()
+    {
+        return modifiedReplacements;
+    }
+
+    /**
+     * Returns all messages which only exist in the newer snapshot
+     *
+     * @return Added messages
+     */
+    public List<Message> getAddedMessages()
+    {
+        return addedMessages;
+    }
+
+    /**
+     * Returns all messages which only exist in the older snapshot
+     *
+     * @return Removed messages
+     */
+    public List<Message> getRemovedMessages()
+    {
+        return removedMessages;
+    }
+
+    /**
+     * Returns all messages whose text changed
+     *
+     * @return Modified messages
+     */
+    public List<Modification<Message>> getModifiedMessages()
+    {
+        return modifiedMessages;
+    }
+
+    /**
+     * Returns a human-readable summary of the differences
+     *
+     * @return Summary
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("replacements: +%d -%d ~%d, messages: +%d -%d ~%d",
+                addedReplacements.size(), removedReplacements.size(), modifiedReplacements.size(),
+                addedMessages.size(), removedMessages.size(), modifiedMessages.size());
+    }
+
+    // Creates a mask of the given size with the given columns set
+    private static boolean[] columns(int size, int... columns)
+    {
+        boolean[] mask = new boolean[size];
+        for (int column : columns)
+        {
+            mask[column] = true;
+        }
+
+        return mask;
+    }
+
+    /**
+     * An entry which exists in both snapshots with different content
+     *
+     * @param <T> Replacement or Message
+     */
+    public static final class Modification<T>
+    {
+        private final T before;
+        private final T after;
+
+        Modification(T before, T after)
+        {
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Returns the entry of the older snapshot
+         *
+         * @return Old entry
+         */
+        public T getBefore()
+        {
+            return before;
+        }
+
+        /**
+         * Returns the entry of the newer snapshot
+         *
+         * @return New entry
+         */
+        public T getAfter()
+        {
+            return after;
+        }
+
+        /**
+         * Returns a human-readable string containing both entries
+         *
+         * @return Modification information
+         */
+        @Override
+        public String toString()
+        {
+            return before + " -> " + after;
+        }
+    }
+
+    // Matches the entries of both snapshots
+    private static final class Matcher<T>
+    {
+        private final ArrayList<T> added = new ArrayList<>();
+        private final ArrayList<T> removed = new ArrayList<>();
+        private final ArrayList<Modification<T>> modified = new ArrayList<>();
+
+        Matcher(List<T> before, List<T> after, Function<T, String[]> data, boolean[] volatileColumns)
+        {
+            // 1. Match entries with equal content
+            HashMap<T, ArrayDeque<Integer>> equal = new HashMap<>();
+            for (int i = 0; i < before.size(); i++)
+            {
+                equal.computeIfAbsent(before.get(i), entry -> new ArrayDeque<>()).add(i);
+            }
+
+            boolean[] matched = new boolean[before.size()];
+            ArrayList<T> unmatched = new ArrayList<>();
+            for (T entry : after)
+            {
+                ArrayDeque<Integer> indexes = equal.get(entry);
+                if (indexes != null && !indexes.isEmpty())
+                {
+                    matched[indexes.poll()] = true;
+                }
+                else
+                {
+                    unmatched.add(entry);
+                }
+            }
+
+            // 2. Match the remaining entries by their identity
+            HashMap<Identity, ArrayDeque<Integer>> identities = new HashMap<>();
+            for (int i = 0; i < before.size(); i++)
+            {
+                if (!matched[i])
+                {
+                    Identity identity = new Identity(data.apply(before.get(i)), volatileColumns);
+                    identities.computeIfAbsent(identity, key -> new ArrayDeque<>()).add(i);
+                }
+            }
+
+            for (T entry : unmatched)
+            {
+                ArrayDeque<Integer> indexes = identities.get(new Identity(data.apply(entry), volatileColumns));
+                if (indexes != null && !indexes.isEmpty())
+                {
+                    int index = indexes.poll();
+                    matched[index] = true;
+                    modified.add(new Modification<>(before.get(index), entry));
+                }
+                else
+                {
+                    added.add(entry);
+                }
+            }
+
+            for (int i = 0; i < before.size(); i++)
+            {
+                if (!matched[i])
+                {
+                    removed.add(before.get(i));
+                }
+            }
+        }
+    }
+
+    // Data of an entry without its volatile columns
+    private static final class Identity
+    {
+        private final String[] data;
+        private final boolean[] volatileColumns;
+        private final int hash;
+
+        Identity(String[] data, boolean[] volatileColumns)
+        {
+            this.data = data;
+            this.volatileColumns = volatileColumns;
+
+            int h = 1;
+            for (int i = 0; i < data.length; i++)
+            {
+                if (!isVolatile(i))
+                {
+                    h = 31 * h + (data[i] == null ? 0 : data[i].hashCode());
+                }
+            }
+
+            hash = h;
+        }
+
+        private boolean isVolatile(int column)
+        {
+            return column < volatileColumns.length && volatileColumns[column];
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Identity))
+            {
+                return false;
+            }
+
+            Identity other = (Identity) obj;
+            if (hash != other.hash || data.length != other.data.length)
+            {
+                return false;
+            }
+
+            for (int i = 0; i < data.length; i++)
+            {
+                if (!isVolatile(i) && !Objects.equals(data[i], other.data[i]))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package de.stonedroid.vertretungsplan;
+
+/**
+ * Loads the ReplacementTable of a grade for a week offset.
+ * ReplacementTable::downloadTable is the default implementation.
+ */
+public interface TableLoader
+{
+    /**
+     * Loads the ReplacementTable (with week offset) for the chosen grade
+     *
+     * @param grade The grade decides which table is going to be loaded
+     * @param plusWeeks Week offset (default is 0)
+     * @return ReplacementTable with information for the grade
+     * @throws WebException Failed to load ReplacementTable
+     */
+    ReplacementTable load(Grade grade, int plusWeeks) throws WebException;
+}
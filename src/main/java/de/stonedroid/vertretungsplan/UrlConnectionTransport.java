@@ -0,0 +1,77 @@
+package de.stonedroid.vertretungsplan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * Plain URLConnection transport without compression and without timeouts.
+ * Used as fallback for urls which aren't http(s).
+ */
+public class UrlConnectionTransport implements HttpTransport
+{
+    @Override
+    public Response get(String url, Map<String, String> headers) throws IOException
+    {
+        URLConnection connection = new URL(url).openConnection();
+        for (Map.Entry<String, String> header : headers.entrySet())
+        {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        return new ConnectionResponse(connection);
+    }
+
+    // Response based on an URLConnection
+    static class ConnectionResponse implements Response
+    {
+        final URLConnection connection;
+        InputStream body;
+
+        ConnectionResponse(URLConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException
+        {
+            // Non-http connections (e.g. file:) have no status code
+            if (connection instanceof HttpURLConnection)
+            {
+                return ((HttpURLConnection) connection).getResponseCode();
+            }
+
+            return HttpURLConnection.HTTP_OK;
+        }
+
+        @Override
+        public String getHeader(String name)
+        {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException
+        {
+            if (body == null)
+            {
+                body = connection.getInputStream();
+            }
+
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (body != null)
+            {
+                body.close();
+            }
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package de.stonedroid.vertretungsplan;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 
 /**
  * Intern class with handy functions
@@ -35,6 +38,147 @@ final class Utils
         return result.toString("utf-8");
     }
 
+    /**
+     * Reads the reader until its end and returns the result
+     *
+     * @param reader Reader to read
+     * @return Whole content of the reader
+     * @throws IOException Couldn't read from reader
+     */
+    public static String readToEnd(Reader reader) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int len;
+
+        while ((len = reader.read(buffer)) != -1)
+        {
+            sb.append(buffer, 0, len);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the charset of a Content-Type header value (e.g. "text/html; charset=iso-8859-1")
+     *
+     * @param contentType Value of the Content-Type header, can be null
+     * @param defaultCharset Charset used if the header contains no (supported) charset
+     * @return Charset of the content
+     */
+    public static Charset getCharset(String contentType, Charset defaultCharset)
+    {
+        if (contentType == null)
+        {
+            return defaultCharset;
+        }
+
+        for (String parameter : contentType.split(";"))
+        {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "charset=", 0, 8))
+            {
+                String name = parameter.substring(8).trim().replace("\"", "");
+                try
+                {
+                    return Charset.forName(name);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    // Unknown or illegal charset name
+                    return defaultCharset;
+                }
+            }
+        }
+
+        return defaultCharset;
+    }
+
+    /**
+     * Parses a period like "3" or "3 - 4"
+     *
+     * @param period Period of a replacement
+     * @return (start &lt;&lt; 16 | end) or -1 if the period isn't parsable
+     */
+    public static int parsePeriod(String period)
+    {
+        if (period == null)
+        {
+            return -1;
+        }
+
+        int separator = period.indexOf('-');
+        try
+        {
+            int start = Integer.parseInt(separator == -1 ? period.trim() : period.substring(0, separator).trim());
+            int end = separator == -1 ? start : Integer.parseInt(period.substring(separator + 1).trim());
+            if (start < 0 || end < start || end > 0x7FFF)
+            {
+                return -1;
+            }
+
+            return start << 16 | end;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a date like "12.3." or "12.3.2018". Without a year, the year which puts the date
+     * closest to the reference date is chosen (e.g. "2.1." in December is in the next year).
+     *
+     * @param date Date of a replacement or message
+     * @param reference Date the page was read
+     * @return Epoch day of the date or Long.MIN_VALUE if the date isn't parsable
+     */
+    public static long parseEpochDay(String date, LocalDate reference)
+    {
+        if (date == null)
+        {
+            return Long.MIN_VALUE;
+        }
+
+        String[] parts = date.trim().split("\\.");
+        if (parts.length < 2)
+        {
+            return Long.MIN_VALUE;
+        }
+
+        try
+        {
+            int day = Integer.parseInt(parts[0].trim());
+            int month = Integer.parseInt(parts[1].trim());
+            if (parts.length > 2 && !parts[2].trim().isEmpty())
+            {
+                return LocalDate.of(Integer.parseInt(parts[2].trim()), month, day).toEpochDay();
+            }
+
+            long best = Long.MIN_VALUE;
+            for (int year = reference.getYear() - 1; year <= reference.getYear() + 1; year++)
+            {
+                if (day == 29 && month == 2 && !reference.withYear(year).isLeapYear())
+                {
+                    continue;
+                }
+
+                long epochDay = LocalDate.of(year, month, day).toEpochDay();
+                if (best == Long.MIN_VALUE || Math.abs(epochDay - reference.toEpochDay())
+                        < Math.abs(best - reference.toEpochDay()))
+                {
+                    best = epochDay;
+                }
+            }
+
+            return best;
+        }
+        catch (NumberFormatException | DateTimeException e)
+        {
+            return Long.MIN_VALUE;
+        }
+    }
+
     /**
      * Reads the given file until it reaches the EOF and suddenly returns the result;
      *
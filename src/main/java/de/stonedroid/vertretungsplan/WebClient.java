@@ -1,9 +1,26 @@
 package de.stonedroid.vertretungsplan;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Used to download html content from web sites
@@ -17,6 +34,28 @@ class WebClient
     // - Protocol version
     private String userAgent = null;
 
+    // Used if the response doesn't declare a charset
+    private static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+    // Transport which executes the requests
+    private volatile HttpTransport transport = new KeepAliveTransport();
+
+    // Receives latency, size and status of every request
+    private volatile Metrics metrics = Metrics.NONE;
+
+    // Retries and hedging of failed or slow requests
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    // Durations of the recent successful requests, used to decide when to hedge
+    private final LatencyTracker latencies = new LatencyTracker();
+
+    // Circuit breaker of each host and the settings of new breakers
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private volatile int breakerFailureThreshold = CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private volatile long breakerOpenMillis = CircuitBreaker.DEFAULT_OPEN_MILLIS;
+
+    // Validators (ETag/Last-Modified) of the last response for each url
+    private final Map<String, Validators> validators = new ConcurrentHashMap<>();
+
     /**
      * Downloads and returns web site html code.
      *
@@ -25,27 +64,289 @@ class WebClient
      * @throws WebException
      */
     public String downloadString(String url) throws WebException
+    {
+        return download(url, false, Utils::readToEnd);
+    }
+
+    /**
+     * Downloads and returns web site html code, but only if it has changed since the last download
+     * of the same url. The validators of the last response are sent with the request
+     * (If-None-Match/If-Modified-Since), so the server can answer with "304 Not Modified".
+     *
+     * If the caller can't use the returned html (e.g. it can't be parsed), it has to call forgetValidators(),
+     * otherwise the server would answer the next request with "304 Not Modified".
+     *
+     * @param url Website url which should be used to download data from
+     * @return A String containing the website's html or null if it hasn't changed
+     * @throws WebException
+     */
+    public String downloadStringIfModified(String url) throws WebException
+    {
+        return download(url, true, Utils::readToEnd);
+    }
+
+    /**
+     * Downloads the web site and passes its content to the bodyReader while it arrives.
+     * The charset is taken from the Content-Type header (UTF-8 if missing).
+     * The validators of the response are only stored if the bodyReader succeeds.
+     *
+     * @param url Website url which should be used to download data from
+     * @param conditional Whether only a changed web site should be downloaded (see downloadStringIfModified())
+     * @param bodyReader Reads the decoded content
+     * @param <T> Result type of bodyReader
+     * @return Result of bodyReader or null if conditional and the web site hasn't changed
+     * @throws WebException
+     */
+    public <T> T download(String url, boolean conditional, BodyReader<T> bodyReader) throws WebException
+    {
+        CircuitBreaker breaker = getCircuitBreaker(url);
+        if (!breaker.tryAcquire())
+        {
+            throw new CircuitOpenException("Too many failed requests, host is unavailable for URL: " + url);
+        }
+
+        return download(url, conditional, bodyReader, breaker);
+    }
+
+    // Downloads the web site after the breaker let the request through and reports the outcome to it
+    <T> T download(String url, boolean conditional, BodyReader<T> bodyReader, CircuitBreaker breaker)
+            throws WebException
     {
         try
         {
-            // Opens a connection and retrieves the input stream
-            URLConnection connection = new URL(url).openConnection();
-            // Set userAgent if set by user
-            if (userAgent != null)
+            T result = downloadWithRetries(url, conditional, bodyReader);
+            breaker.onSuccess();
+            return result;
+        }
+        catch (IOException e)
+        {
+            // All attempts failed, the host seems to be down
+            breaker.onFailure();
+            throw new WebException(e.getMessage(), e);
+        }
+        catch (WebException | RuntimeException e)
+        {
+            // The host answered (e.g. 404), unless the download was interrupted before
+            if (Thread.currentThread().isInterrupted())
+            {
+                breaker.onFailure();
+            }
+            else
             {
-                connection.setRequestProperty("User-Agent", userAgent);
+                breaker.onSuccess();
             }
 
-            InputStream stream = connection.getInputStream();
-            // Get converted input stream.
-            String html = Utils.inputStreamToString(stream);
-            // Close connection
-            stream.close();
-            return html;
+            throw e;
         }
-        catch (IOException e)
+    }
+
+    // Sends the request until it succeeds or the retry policy gives up, the last transient error is thrown
+    private <T> T downloadWithRetries(String url, boolean conditional, BodyReader<T> bodyReader)
+            throws IOException, WebException
+    {
+        HashMap<String, String> headers = new HashMap<>();
+        // Set userAgent if set by user
+        if (userAgent != null)
+        {
+            headers.put("User-Agent", userAgent);
+        }
+
+        Validators last = validators.get(url);
+        if (conditional && last != null)
+        {
+            if (last.eTag != null)
+            {
+                headers.put("If-None-Match", last.eTag);
+            }
+
+            if (last.lastModified != null)
+            {
+                headers.put("If-Modified-Since", last.lastModified);
+            }
+        }
+
+        RetryPolicy policy = retryPolicy;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.getDeadlineMillis());
+
+        for (int attempt = 1; ; attempt++)
+        {
+            try
+            {
+                if (policy.isHedging())
+                {
+                    return downloadHedged(url, conditional, headers, bodyReader, policy, deadline);
+                }
+
+                return downloadOnce(url, conditional, headers, bodyReader, null, deadline);
+            }
+            catch (IOException e)
+            {
+                // Transient error, try again after a random backoff if there is enough time left
+                long backoff = TimeUnit.MILLISECONDS.toNanos(policy.getBackoffMillis(attempt));
+                if (attempt >= policy.getMaxAttempts() || System.nanoTime() + backoff >= deadline)
+                {
+                    throw e;
+                }
+
+                sleep(backoff);
+            }
+        }
+    }
+
+    // Sends the request and waits for a second, hedged request if the first one is slow
+    private <T> T downloadHedged(String url, boolean conditional, Map<String, String> headers,
+                                 BodyReader<T> bodyReader, RetryPolicy policy, long deadline)
+            throws IOException, WebException
+    {
+        long hedgeDelay = latencies.getPercentile(policy.getHedgePercentile());
+        if (hedgeDelay == -1)
+        {
+            // Not enough requests yet to know what's slow
+            return downloadOnce(url, conditional, headers, bodyReader, null, deadline);
+        }
+
+        AtomicBoolean cancelled = new AtomicBoolean();
+        BlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<>();
+        Runnable request = () -> outcomes.add(Outcome.of(() -> downloadOnce(url, conditional, headers, bodyReader,
+                cancelled, deadline)));
+
+        try
         {
-            throw new WebException(e.getMessage(), e.getCause());
+            Attempts.EXECUTOR.execute(request);
+            int running = 1;
+            Outcome<T> outcome = outcomes.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if (outcome == null)
+            {
+                // The request is slower than usual, race it against a second one
+                Attempts.EXECUTOR.execute(request);
+                running++;
+            }
+
+            while (true)
+            {
+                if (outcome == null)
+                {
+                    outcome = outcomes.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (outcome == null)
+                    {
+                        throw new SocketTimeoutException("Deadline exceeded for URL: " + url);
+                    }
+                }
+
+                running--;
+                if (outcome.failure == null || running == 0)
+                {
+                    return outcome.get();
+                }
+
+                // One request failed, wait for the other one
+                outcome = null;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebException("Download interrupted", e);
+        }
+        finally
+        {
+            // Stops the slower request
+            cancelled.set(true);
+        }
+    }
+
+    // Sends one request, transient errors (including an exceeded deadline) are thrown as IOException
+    private <T> T downloadOnce(String url, boolean conditional, Map<String, String> headers,
+                               BodyReader<T> bodyReader, AtomicBoolean cancelled, long deadline)
+            throws IOException, WebException
+    {
+        Metrics metrics = this.metrics;
+        long start = System.nanoTime();
+        long latency = -1;
+        int status = -1;
+        CountingInputStream body = null;
+
+        // The timeouts of the transport must not outlast the deadline
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - start);
+        if (remaining <= 0)
+        {
+            throw new SocketTimeoutException("Deadline exceeded for URL: " + url);
+        }
+
+        try (HttpTransport.Response response = transport.get(url, headers,
+                (int) Math.min(remaining, Integer.MAX_VALUE)))
+        {
+            latency = System.nanoTime() - start;
+            status = response.getStatusCode();
+            // Content hasn't changed since the last download
+            if (conditional && status == HttpURLConnection.HTTP_NOT_MODIFIED)
+            {
+                return null;
+            }
+
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST)
+            {
+                String message = "Server returned HTTP response code: " + status + " for URL: " + url;
+                if (RetryPolicy.isTransient(status))
+                {
+                    throw new IOException(message);
+                }
+
+                throw new WebException(message);
+            }
+
+            // Decode the body while reading it
+            Charset charset = Utils.getCharset(response.getHeader("Content-Type"), DEFAULT_CHARSET);
+            body = new CountingInputStream(response.getBody(), cancelled, deadline);
+            T result = bodyReader.read(new InputStreamReader(body, charset));
+            storeValidators(url, response);
+            latencies.add(System.nanoTime() - start);
+            return result;
+        }
+        finally
+        {
+            long duration = System.nanoTime() - start;
+            metrics.recordHttpRequest(url, status, body != null ? body.count : 0,
+                    latency != -1 ? latency : duration, duration);
+        }
+    }
+
+    // Waits before the next attempt
+    private static void sleep(long nanos) throws WebException
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new WebException("Download interrupted", e);
+        }
+    }
+
+    /**
+     * Forgets the validators of the url, so the next conditional request downloads the web site again
+     *
+     * @param url Website url
+     */
+    public void forgetValidators(String url)
+    {
+        validators.remove(url);
+    }
+
+    // Remembers the validators of the response for the next conditional request
+    private void storeValidators(String url, HttpTransport.Response response)
+    {
+        String eTag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (eTag != null || lastModified != null)
+        {
+            validators.put(url, new Validators(eTag, lastModified));
+        }
+        else
+        {
+            validators.remove(url);
         }
     }
 
@@ -68,4 +369,278 @@ class WebClient
     {
         this.userAgent = userAgent;
     }
+
+    /**
+     * Gets transport
+     *
+     * @return transport
+     */
+    public HttpTransport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Sets transport
+     *
+     * @param transport new transport
+     */
+    public void setTransport(HttpTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * Gets metrics
+     *
+     * @return metrics
+     */
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Sets metrics
+     *
+     * @param metrics new metrics
+     */
+    public void setMetrics(Metrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets retryPolicy
+     *
+     * @return retryPolicy
+     */
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets retryPolicy
+     *
+     * @param retryPolicy new retryPolicy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the circuit breaker of the url's host and creates it if necessary
+     *
+     * @param url Url of the request
+     * @return Circuit breaker shared by all urls of the host
+     */
+    CircuitBreaker getCircuitBreaker(String url)
+    {
+        String host;
+        try
+        {
+            host = new URL(url).getHost();
+        }
+        catch (MalformedURLException e)
+        {
+            host = url;
+        }
+
+        return breakers.computeIfAbsent(host,
+                key -> new CircuitBreaker(breakerFailureThreshold, breakerOpenMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Sets when the circuit breakers open and how long they stay open. Existing breakers are replaced.
+     *
+     * @param failureThreshold Number of consecutive failed downloads which open the breaker of a host
+     * @param openDuration Time until a probe request is sent to an unavailable host
+     * @param unit Unit of openDuration
+     */
+    public void setCircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit)
+    {
+        if (failureThreshold < 1)
+        {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+
+        breakerFailureThreshold = failureThreshold;
+        breakerOpenMillis = unit.toMillis(openDuration);
+        breakers.clear();
+    }
+
+    /**
+     * Reads the body of a response. With hedging enabled it may be called concurrently for the same url.
+     *
+     * @param <T> Result type
+     */
+    interface BodyReader<T>
+    {
+        T read(Reader reader) throws IOException, WebException;
+    }
+
+    // Counts the bytes read from the body and aborts reading if the request was cancelled or the deadline passed
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private final AtomicBoolean cancelled;
+        private final long deadline;
+        long count;
+
+        CountingInputStream(InputStream in, AtomicBoolean cancelled, long deadline)
+        {
+            super(in);
+            this.cancelled = cancelled;
+            this.deadline = deadline;
+        }
+
+        private void checkAborted() throws IOException
+        {
+            if (cancelled != null && cancelled.get())
+            {
+                throw new InterruptedIOException("Request cancelled");
+            }
+
+            if (System.nanoTime() - deadline >= 0)
+            {
+                throw new SocketTimeoutException("Deadline exceeded");
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            checkAborted();
+            int b = super.read();
+            if (b != -1)
+            {
+                count++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            checkAborted();
+            int read = super.read(b, off, len);
+            if (read > 0)
+            {
+                count += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // Result of a request running on another thread
+    private static final class Outcome<T>
+    {
+        private final T value;
+        private final Exception failure;
+
+        private Outcome(T value, Exception failure)
+        {
+            this.value = value;
+            this.failure = failure;
+        }
+
+        static <T> Outcome<T> of(Request<T> request)
+        {
+            try
+            {
+                return new Outcome<>(request.send(), null);
+            }
+            catch (IOException | WebException | RuntimeException e)
+            {
+                return new Outcome<>(null, e);
+            }
+        }
+
+        T get() throws IOException, WebException
+        {
+            if (failure instanceof IOException)
+            {
+                throw (IOException) failure;
+            }
+
+            if (failure instanceof WebException)
+            {
+                throw (WebException) failure;
+            }
+
+            if (failure != null)
+            {
+                throw (RuntimeException) failure;
+            }
+
+            return value;
+        }
+    }
+
+    // Request which can be sent on another thread
+    private interface Request<T>
+    {
+        T send() throws IOException, WebException;
+    }
+
+    // Runs hedged requests, separate from the download executor, so a download never waits for its own pool
+    private static final class Attempts
+    {
+        static final ExecutorService EXECUTOR = SharedExecutor.createDefault();
+    }
+
+    // Ring buffer of the recent request durations
+    private static final class LatencyTracker
+    {
+        // Hedging starts after this number of requests
+        private static final int MIN_SAMPLES = 20;
+
+        private final long[] samples = new long[128];
+        private int count;
+        private int next;
+
+        synchronized void add(long nanos)
+        {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        // Returns the percentile of the recorded durations or -1 if there are too few
+        synchronized long getPercentile(double percentile)
+        {
+            if (count < MIN_SAMPLES)
+            {
+                return -1;
+            }
+
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (percentile * count))];
+        }
+    }
+
+    // Validators of a response
+    private static final class Validators
+    {
+        final String eTag;
+        final String lastModified;
+
+        Validators(String eTag, String lastModified)
+        {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest
+{
+    private long now;
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 10, TimeUnit.SECONDS, () -> now);
+
+    private void failRequests(int times)
+    {
+        for (int i = 0; i < times; i++)
+        {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures()
+    {
+        failRequests(2);
+        breaker.onSuccess();
+        failRequests(2);
+        assertTrue(breaker.isClosed());
+        failRequests(1);
+        assertFalse(breaker.isClosed());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testLetsOneProbeThrough()
+    {
+        failRequests(3);
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(breaker.tryAcquire());
+        // Only one probe at a time
+        assertFalse(breaker.tryAcquire());
+        breaker.onSuccess();
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain()
+    {
+        failRequests(3);
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertFalse(breaker.tryAcquire());
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertTrue(breaker.tryAcquire());
+    }
+}
@@ -33,17 +33,9 @@ public class Main
         ArrayList<Grade> grades = new ArrayList<>();
         names.forEach(s -> grades.add(Grade.parse(s)));
 
-        for (Grade grade : grades)
-        {
-            try
-            {
-                ReplacementTable table = ReplacementTable.downloadTable(grade, 1);
-            }
-            catch (WebException e)
-            {
-                System.err.println("Struggling with " + grade);
-            }
-        }
+        // Download all grades at once with 8 parallel downloads
+        DownloadResult result = ReplacementTable.downloadAll(grades, 1, 8);
+        result.getFailures().keySet().forEach(grade -> System.err.println("Struggling with " + grade));
     }
 
     // Basic usage example (using async method)
@@ -65,6 +57,19 @@ public class Main
         });
     }
 
+    // Basic usage example (using CompletableFuture)
+    public static void Test4()
+    {
+        ReplacementTable.downloadTableAsync(Grade.parse("12"), 1)
+                .thenAccept(Main::printReplacementTable)
+                .exceptionally(throwable ->
+                {
+                    throwable.printStackTrace();
+                    return null;
+                })
+                .join();
+    }
+
     private static void printReplacementTable(ReplacementTable table)
     {
         // Print dates
@@ -0,0 +1,269 @@
+package de.stonedroid.vertretungsplan;
+
+import java.util.Random;
+
+/**
+ * Seeded generator of replacement pages in the markup of the real server, used for scaling tests and benchmarks.
+ * <p>
+ * A page contains the grade header, a date header per day, optionally a message table per day and the
+ * replacement rows. Rows are generated in runs of equal content with consecutive periods (like the server lists
+ * double periods), neighbouring runs always differ, so optimize() merges every run into exactly one replacement.
+ * The same seed always results in the same page.
+ */
+public class PageGenerator
+{
+    private static final String[] DAYS = {"Montag", "Dienstag", "Mittwoch", "Donnerstag", "Freitag"};
+    private static final String[] SUBJECTS = {"E2", "M1", "D3", "bio2", "ch1", "ph2", "sp1", "G1", "rev2", "ETH"};
+    private static final String[] TEXTS = {"fällt aus", "---", "Raumänderung", "E findet statt", "&nbsp;"};
+    private static final String[] WORDS = {
+            "Heute", "ist", "für", "die", "Klassenstufe", "Sprachenexkursion", "Klausur", "in", "Raum",
+            "<b>wichtig</b>", "&quot;Aushang&quot;", "beachten", "&amp;", "Schüler", "&uuml;ber", "Mensa"
+    };
+
+    private final long seed;
+    private final String grade;
+    private final int rows;
+    private final int runLength;
+    private final int days;
+    private final int messageParagraphs;
+    private final int paragraphWords;
+
+    private PageGenerator(Builder builder)
+    {
+        seed = builder.seed;
+        grade = builder.grade;
+        rows = builder.rows;
+        runLength = builder.runLength;
+        days = builder.days;
+        messageParagraphs = builder.messageParagraphs;
+        paragraphWords = builder.paragraphWords;
+    }
+
+    /**
+     * Returns the number of generated replacement rows
+     *
+     * @return Number of rows before optimize()
+     */
+    public int getRowCount()
+    {
+        return rows;
+    }
+
+    /**
+     * Returns the number of replacements after optimize()
+     *
+     * @return Number of runs
+     */
+    public int getRunCount()
+    {
+        int count = 0;
+        for (int day = 0; day < days; day++)
+        {
+            count += (getRowsOfDay(day) + runLength - 1) / runLength;
+        }
+
+        return count;
+    }
+
+    /**
+     * Generates the page
+     *
+     * @return Html of the page
+     */
+    public String generate()
+    {
+        Random random = new Random(seed);
+        StringBuilder html = new StringBuilder(rows * 400 + 1024);
+        html.append("<!DOCTYPE HTML PUBLIC \"-//IETF//DTD HTML//EN\">\n<html>\n<head>\n")
+                .append("    <meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\">\n")
+                .append("</head>\n<body bgcolor=\"#FFFFFF\">\n<CENTER><font size=\"3\" face=\"Arial\">\n")
+                .append("    <BR><h2>").append(grade).append("</h2><p><div id=\"vertretung\">\n");
+
+        for (int day = 0; day < days; day++)
+        {
+            String date = String.format("%d.6.", 18 + day);
+            html.append("    <a name=\"").append(day + 1).append("\">&nbsp;</a><br><b>").append(date).append(' ')
+                    .append(DAYS[day % DAYS.length]).append("</b><p>\n");
+
+            if (messageParagraphs > 0)
+            {
+                appendMessage(html, random);
+            }
+
+            html.append("    <table class=\"subst\" >\n");
+            appendRows(html, random, date, getRowsOfDay(day));
+            html.append("    </table>\n    <p>\n");
+        }
+
+        html.append("        </div></font>\n</CENTER>\n</body>\n</html>\n");
+        return html.toString();
+    }
+
+    // Rows are distributed evenly, the first days get the remainder
+    private int getRowsOfDay(int day)
+    {
+        return rows / days + (day < rows % days ? 1 : 0);
+    }
+
+    private void appendMessage(StringBuilder html, Random random)
+    {
+        html.append("    <table border=\"3\" rules=\"all\" bgcolor=\"#F4F4F4\" cellpadding=\"3\" cellspacing=\"3\">\n")
+                .append("        <tr><th align=\"center\" colspan=\"2\">Nachrichten zum Tag</th></tr>\n")
+                .append("        <tr><td colspan=\"2\">");
+
+        for (int paragraph = 0; paragraph < messageParagraphs; paragraph++)
+        {
+            if (paragraph > 0)
+            {
+                html.append("            <br>");
+            }
+
+            for (int word = 0; word < paragraphWords; word++)
+            {
+                html.append(WORDS[random.nextInt(WORDS.length)]).append(word + 1 < paragraphWords ? " " : ".\n");
+            }
+        }
+
+        html.append("            <br></td></tr>\n    </table>\n    <p>\n");
+    }
+
+    private void appendRows(StringBuilder html, Random random, String date, int count)
+    {
+        int subject = random.nextInt(SUBJECTS.length);
+        for (int row = 0; row < count; row += runLength)
+        {
+            // The next run always has another subject, so runs are never merged with each other
+            subject = (subject + 1 + random.nextInt(SUBJECTS.length - 1)) % SUBJECTS.length;
+            String room = Integer.toString(100 + random.nextInt(200));
+            String oldSubject = SUBJECTS[random.nextInt(SUBJECTS.length)];
+            String text = TEXTS[random.nextInt(TEXTS.length)];
+            int firstPeriod = 1 + random.nextInt(4);
+
+            for (int period = 0; period < runLength && row + period < count; period++)
+            {
+                html.append("        <tr class='list ").append((row + period) % 2 == 0 ? "odd" : "even").append("'>");
+                appendCell(html, date);
+                appendCell(html, grade);
+                appendCell(html, Integer.toString(firstPeriod + period));
+                appendCell(html, SUBJECTS[subject]);
+                appendCell(html, room);
+                appendCell(html, oldSubject);
+                appendCell(html, text);
+                html.append("</tr>\n");
+            }
+        }
+    }
+
+    private static void appendCell(StringBuilder html, String value)
+    {
+        html.append("<td class=\"list\" align=\"center\">").append(value).append("</td>");
+    }
+
+    /**
+     * Builder class to configure a PageGenerator
+     */
+    public static class Builder
+    {
+        private long seed = 42;
+        private String grade = "11";
+        private int rows = 1000;
+        private int runLength = 2;
+        private int days = 5;
+        private int messageParagraphs = 2;
+        private int paragraphWords = 20;
+
+        /**
+         * Sets the seed of the random content
+         *
+         * @param seed Seed
+         * @return Current Builder instance
+         */
+        public Builder setSeed(long seed)
+        {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Sets the grade written into the page header and the rows
+         *
+         * @param grade Grade name (e.g. "11" or "5a")
+         * @return Current Builder instance
+         */
+        public Builder setGrade(String grade)
+        {
+            this.grade = grade;
+            return this;
+        }
+
+        /**
+         * Sets the total number of replacement rows
+         *
+         * @param rows Number of rows
+         * @return Current Builder instance
+         */
+        public Builder setRows(int rows)
+        {
+            this.rows = rows;
+            return this;
+        }
+
+        /**
+         * Sets the number of rows with equal content and consecutive periods
+         *
+         * @param runLength Length of a run (1 = no duplicate periods)
+         * @return Current Builder instance
+         */
+        public Builder setRunLength(int runLength)
+        {
+            if (runLength < 1 || runLength > 8)
+            {
+                throw new IllegalArgumentException("runLength must be between 1 and 8");
+            }
+
+            this.runLength = runLength;
+            return this;
+        }
+
+        /**
+         * Sets the number of days (date headers) of the page
+         *
+         * @param days Number of days
+         * @return Current Builder instance
+         */
+        public Builder setDays(int days)
+        {
+            if (days < 1)
+            {
+                throw new IllegalArgumentException("days must be at least 1");
+            }
+
+            this.days = days;
+            return this;
+        }
+
+        /**
+         * Sets the size of the message of every day
+         *
+         * @param paragraphs Paragraphs per message (0 = no messages)
+         * @param wordsPerParagraph Words per paragraph
+         * @return Current Builder instance
+         */
+        public Builder setMessageSize(int paragraphs, int wordsPerParagraph)
+        {
+            this.messageParagraphs = paragraphs;
+            this.paragraphWords = Math.max(1, wordsPerParagraph);
+            return this;
+        }
+
+        /**
+         * Creates a PageGenerator object
+         *
+         * @return Configured generator
+         */
+        public PageGenerator create()
+        {
+            return new PageGenerator(this);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ReplacementTableCacheTest
+{
+    private final AtomicLong time = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+    private String html;
+
+    @Before
+    public void init() throws IOException
+    {
+        html = Utils.readFileToEnd(getClass().getResource("/example1.html").getFile());
+    }
+
+    // Loader which counts its calls and returns a new table each time
+    private ReplacementTable load(Grade grade, int plusWeeks)
+    {
+        loads.incrementAndGet();
+        return ReplacementTable.parseFromHtml(html);
+    }
+
+    @Test
+    public void testHitAndExpiry() throws WebException
+    {
+        ReplacementTableCache cache = new ReplacementTableCache(this::load, 10, TimeUnit.NANOSECONDS, 10, time::get);
+        Grade grade = Grade.parse("11");
+
+        ReplacementTable first = cache.get(grade, 0);
+        assertSame(first, cache.get(grade, 0));
+        assertEquals(1, loads.get());
+
+        // Expire the table
+        time.addAndGet(10);
+        assertNotSame(first, cache.get(grade, 0));
+        assertEquals(2, loads.get());
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(2, stats.getLoadSuccessCount());
+    }
+
+    @Test
+    public void testSameWeekOfAnotherYear() throws WebException
+    {
+        ReplacementTableCache cache = new ReplacementTableCache(this::load, 1, TimeUnit.HOURS, 10, time::get);
+        Grade grade = Grade.parse("11");
+
+        // 52 or 53 weeks later is the same week of year, but not the same table
+        ReplacementTable current = cache.get(grade, 0);
+        assertNotSame(current, cache.get(grade, 52));
+        assertNotSame(current, cache.get(grade, 53));
+        assertEquals(3, loads.get());
+        assertSame(current, cache.get(grade, 0));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws WebException
+    {
+        ReplacementTableCache cache = new ReplacementTableCache(this::load, 1, TimeUnit.HOURS, 2, time::get);
+        Grade a = Grade.parse("5a");
+        Grade b = Grade.parse("5b");
+        Grade c = Grade.parse("5c");
+
+        cache.get(a, 0);
+        cache.get(b, 0);
+        // Use a again, so b becomes the least recently used table
+        cache.get(a, 0);
+        cache.get(c, 0);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getStats().getEvictionCount());
+
+        cache.get(a, 0);
+        assertEquals(3, loads.get());
+        cache.get(b, 0);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ReplacementTableCache cache = new ReplacementTableCache((grade, plusWeeks) ->
+        {
+            started.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new WebException("Interrupted", e);
+            }
+
+            return load(grade, plusWeeks);
+        }, 1, TimeUnit.HOURS, 10, time::get);
+
+        Grade grade = Grade.parse("11");
+        Thread[] threads = new Thread[4];
+        ReplacementTable[] results = new ReplacementTable[threads.length];
+        for (int i = 0; i < threads.length; i++)
+        {
+            int index = i;
+            threads[i] = new Thread(() ->
+            {
+                try
+                {
+                    results[index] = cache.get(grade, 0);
+                }
+                catch (WebException e)
+                {
+                    e.printStackTrace();
+                }
+            });
+            threads[i].start();
+        }
+
+        started.await();
+        release.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        assertEquals(1, loads.get());
+        for (ReplacementTable result : results)
+        {
+            assertSame(results[0], result);
+        }
+    }
+
+    @Test
+    public void testFailuresAreNotCached()
+    {
+        ReplacementTableCache cache = new ReplacementTableCache((grade, plusWeeks) ->
+        {
+            loads.incrementAndGet();
+            throw new WebException("Offline");
+        }, 1, TimeUnit.HOURS, 10, time::get);
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                cache.get(Grade.parse("11"), 0);
+                fail();
+            }
+            catch (WebException e)
+            {
+                assertEquals("Offline", e.getMessage());
+            }
+        }
+
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getStats().getLoadFailureCount());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,158 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ReplacementTableCodecTest
+{
+    private static final int EXAMPLE_COUNT = 3;
+
+    private ReplacementTable[] tables = new ReplacementTable[EXAMPLE_COUNT];
+
+    @Before
+    public void init() throws IOException
+    {
+        for (int i = 0; i < EXAMPLE_COUNT; i++)
+        {
+            String resourceName = String.format("/example%d.html", i + 1);
+            String html = Utils.readFileToEnd(getClass().getResource(resourceName).getFile());
+            tables[i] = ReplacementTable.parseFromHtml(html);
+        }
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws IOException
+    {
+        for (ReplacementTable table : tables)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ReplacementTableCodec.encode(table, out);
+            ReplacementTable decoded = ReplacementTableCodec.decode(new ByteArrayInputStream(out.toByteArray()));
+            assertTablesEqual(table, decoded);
+        }
+    }
+
+    @Test
+    public void testByteBufferRoundTrip() throws IOException
+    {
+        // Several tables in one buffer
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (ReplacementTable table : tables)
+        {
+            ReplacementTableCodec.encode(table, buffer);
+        }
+
+        buffer.flip();
+        for (ReplacementTable table : tables)
+        {
+            assertTablesEqual(table, ReplacementTableCodec.decode(buffer));
+        }
+
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testGradeAndDownloadDate() throws IOException
+    {
+        Calendar downloadDate = Calendar.getInstance(TimeZone.getTimeZone("Europe/Berlin"));
+        downloadDate.setTimeInMillis(1529650800000L);
+        ReplacementTable table = new ReplacementTable(new ArrayList<>(tables[0].getReplacements()),
+                new ArrayList<>(tables[0].getMessages()), tables[0].getDates(), tables[0].getDays(),
+                Grade.parse("11"), downloadDate);
+
+        ReplacementTable decoded = ReplacementTableCodec.decode(ReplacementTableCodec.encode(table));
+        assertTablesEqual(table, decoded);
+        assertEquals(Grade.parse("11"), decoded.getGrade());
+        assertEquals(downloadDate.getTimeInMillis(), decoded.getDownloadDate().getTimeInMillis());
+        assertEquals(downloadDate.getTimeZone(), decoded.getDownloadDate().getTimeZone());
+    }
+
+    @Test
+    public void testStaleFlag() throws IOException
+    {
+        tables[0].setStale(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReplacementTableCodec.encode(tables[0], out);
+        ReplacementTableCodec.encode(tables[1], out);
+
+        // The stream is only consumed up to the end of each table
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        ReplacementTable stale = ReplacementTableCodec.decode(in);
+        ReplacementTable fresh = ReplacementTableCodec.decode(in);
+        assertTablesEqual(tables[0], stale);
+        assertTrue(stale.isStale());
+        assertTablesEqual(tables[1], fresh);
+        assertFalse(fresh.isStale());
+        assertEquals(0, in.available());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testBufferTooSmall()
+    {
+        ReplacementTableCodec.encode(tables[0], ByteBuffer.allocate(64));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptedData() throws IOException
+    {
+        ByteBuffer buffer = ReplacementTableCodec.encode(tables[0]);
+        buffer.limit(buffer.limit() / 2);
+        ReplacementTableCodec.decode(buffer);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testRowOfWrongWidth() throws IOException
+    {
+        ArrayList<Replacement> replacements = new ArrayList<>();
+        replacements.add(Replacement.Builder.fromData(new String[]{"22.6.", "Freitag", "11"}).create());
+        ReplacementTable table = new ReplacementTable(replacements, new ArrayList<>(), tables[0].getDates(),
+                tables[0].getDays(), null, null);
+        ReplacementTableCodec.decode(ReplacementTableCodec.encode(table));
+    }
+
+    @Test
+    public void testRandomCorruptions()
+    {
+        ByteBuffer encoded = ReplacementTableCodec.encode(tables[0]);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++)
+        {
+            byte[] corrupted = bytes.clone();
+            corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt(256);
+            // Every other case is truncated as well
+            int length = i % 2 == 0 ? corrupted.length : random.nextInt(corrupted.length);
+            try
+            {
+                ReplacementTableCodec.decode(ByteBuffer.wrap(corrupted, 0, length));
+            }
+            catch (IOException e)
+            {
+                // Expected, everything else fails the test
+            }
+        }
+    }
+
+    private static void assertTablesEqual(ReplacementTable expected, ReplacementTable actual)
+    {
+        assertEquals(expected.getReplacements(), actual.getReplacements());
+        assertEquals(expected.getMessages(), actual.getMessages());
+        assertArrayEquals(expected.getDates(), actual.getDates());
+        assertArrayEquals(expected.getDays(), actual.getDays());
+    }
+}
@@ -0,0 +1,124 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class ReplacementTableParserTest
+{
+    @Test
+    public void testRemoveHtmlTags()
+    {
+        assertEquals("Klasse 11", ReplacementTableParser.removeHtmlTags("<BR><h2>Klasse 11</h2>"));
+        // A stray '>' or an unclosed '<' must be kept as text
+        assertEquals("a > b c", ReplacementTableParser.removeHtmlTags("a > b <i>c</i>"));
+        assertEquals("x <unclosed", ReplacementTableParser.removeHtmlTags("x <unclosed"));
+    }
+
+    @Test
+    public void testDecodeEntities()
+    {
+        assertEquals(" &ABü&bogus; &", ReplacementTableParser.removeHtmlTags("&nbsp;&amp;&#65;&#x42;&uuml;&bogus; &"));
+    }
+
+    @Test
+    public void testLineBreaks()
+    {
+        String html = "<br><br>x<BR/>y";
+        StringBuilder builder = new StringBuilder();
+        ReplacementTableParser.stripHtmlTags(html, 0, html.length(), builder, true);
+        assertEquals("\nx\ny", builder.toString());
+    }
+
+    @Test
+    public void testPooledValues()
+    {
+        StringPool pool = new StringPool(2, 8, 1);
+        String value = pool.get("<td>E2</td>", 4, 6);
+        assertEquals("E2", value);
+        assertSame(value, pool.get(new StringBuilder("E2"), 0, 2));
+        // Long values aren't pooled
+        StringBuilder text = new StringBuilder("fällt aus!");
+        assertNotSame(pool.get(text, 0, text.length()), pool.get(text, 0, text.length()));
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testPoolEvictsUnusedValues()
+    {
+        StringPool pool = new StringPool(2, 8, 1);
+        String e2 = pool.get(new StringBuilder("E2"), 0, 2);
+        String empty = pool.get(new StringBuilder("---"), 0, 3);
+        // The full pool starts a new generation and keeps pooling
+        String day = pool.get(new StringBuilder("Montag"), 0, 6);
+        assertSame(day, pool.get(new StringBuilder("Montag"), 0, 6));
+        // Values of the previous generation are still found and move to the current one
+        assertSame(e2, pool.get(new StringBuilder("E2"), 0, 2));
+        assertEquals(2, pool.size());
+
+        // "---" wasn't used during the last generation and has been dropped
+        pool.get(new StringBuilder("Dienstag"), 0, 8);
+        assertNotSame(empty, pool.get(new StringBuilder("---"), 0, 3));
+        assertSame(e2, pool.get(new StringBuilder("E2"), 0, 2));
+    }
+
+    @Test
+    public void testSharedMessages()
+    {
+        MessageStore store = new MessageStore(16);
+        String html = "<tr><td>Heute <b>keine</b>  AGs</td></tr>\n";
+        Function<CharSequence, String> parser = text -> ReplacementTableParser.removeHtmlTags(text.toString()).trim();
+        Message first = store.get("25.6.", "Montag", new StringBuilder(html), parser);
+        // Known blocks aren't parsed again
+        Message second = store.get("25.6.", "Montag", new StringBuilder(html), text ->
+        {
+            throw new AssertionError("Parsed twice");
+        });
+        assertSame(first, second);
+        assertEquals("Heute keine  AGs", first.getText());
+        // The same text on another day is another message
+        assertNotSame(first, store.get("26.6.", "Dienstag", html, parser));
+        // Another block on the same day is another message
+        Message other = store.get("25.6.", "Montag", html.replace("keine", "alle"), parser);
+        assertEquals("Heute alle  AGs", other.getText());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testSharedMessagesSurviveHashCollisions()
+    {
+        // Every block has the same hash
+        MessageStore store = new MessageStore(16, html -> 0);
+        Function<CharSequence, String> parser = text -> ReplacementTableParser.removeHtmlTags(text.toString()).trim();
+        Message first = store.get("25.6.", "Montag", "<td>Heute keine AGs</td>", parser);
+        Message second = store.get("25.6.", "Montag", "<td>Morgen frei :-)</td>", parser);
+        assertEquals("Heute keine AGs", first.getText());
+        assertEquals("Morgen frei :-)", second.getText());
+    }
+
+    @Test
+    public void testGeneratedPage() throws Exception
+    {
+        PageGenerator generator = new PageGenerator.Builder()
+                .setSeed(7)
+                .setRows(10000)
+                .setRunLength(3)
+                .setMessageSize(200, 30)
+                .create();
+        String html = generator.generate();
+        assertEquals(html, generator.generate());
+
+        Object[] results = new ReplacementTableParser(Grade.parse("11")).parse(new StringReader(html)).toResults();
+        assertEquals(generator.getRowCount(), ((List<?>) results[0]).size());
+        assertEquals(5, ((List<?>) results[1]).size());
+
+        ReplacementTable table = ReplacementTable.parseFromHtml(html);
+        assertEquals(generator.getRunCount(), table.getReplacements().size());
+        assertEquals(5, table.getDates().length);
+        assertTrue(table.getMessages().get(0).getText().length() > 10000);
+    }
+}
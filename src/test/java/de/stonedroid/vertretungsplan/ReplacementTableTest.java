@@ -3,11 +3,31 @@ package de.stonedroid.vertretungsplan;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -113,4 +133,676 @@ public class ReplacementTableTest
             }
         }
     }
+
+    @Test
+    public void testCompiledQuery()
+    {
+        HashMap<ReplacementFilter, Collection<String>> filter = new HashMap<>();
+        filter.put(ReplacementFilter.PERIOD, Arrays.asList("1 - 2", "5 - 6"));
+        filter.put(ReplacementFilter.OLD_SUBJECT, Arrays.asList("E5", "rev2", "bio2"));
+        HashMap<ReplacementFilter, Collection<String>> knownEntries = new HashMap<>();
+        knownEntries.put(ReplacementFilter.TEXT, Arrays.asList("Exkursion", "fällt aus"));
+
+        ReplacementQuery query = ReplacementQuery.compile(filter);
+        ReplacementQuery queryWithKnownEntries = ReplacementQuery.compile(filter, knownEntries);
+
+        for (ReplacementTable table : tables)
+        {
+            // A compiled query must return the same replacements as the filter map
+            assertEquals(table.getReplacements(filter), table.getReplacements(query));
+            assertEquals(table.getReplacements(filter, knownEntries), queryWithKnownEntries.filter(table));
+        }
+
+        assertEquals(2, query.filter(tables[0]).size());
+        assertEquals(3, query.filter(Arrays.asList(tables)).size());
+    }
+
+    @Test
+    public void testOptimizeMergesRuns()
+    {
+        String[] periods = {"1", "2", "3", "5", "7 - 8", "6", "5"};
+        StringBuilder html = new StringBuilder("<b>25.6. Montag</b>\n");
+        for (String period : periods)
+        {
+            html.append("<tr class='list odd'><td class=\"list\" align=\"center\">25.6.</td>")
+                    .append("<td class=\"list\" align=\"center\">11</td>")
+                    .append("<td class=\"list\" align=\"center\">").append(period).append("</td>")
+                    .append("<td class=\"list\" align=\"center\">---</td>")
+                    .append("<td class=\"list\" align=\"center\">---</td>")
+                    .append("<td class=\"list\" align=\"center\">bio2</td>")
+                    .append("<td class=\"list\" align=\"center\">fällt aus</td></tr>\n");
+        }
+
+        List<Replacement> replacements = ReplacementTable.parseFromHtml(html.toString()).getReplacements();
+        assertEquals(3, replacements.size());
+        // Three consecutive periods, an interrupted run and a descending run
+        assertEquals("1 - 3", replacements.get(0).getPeriod());
+        assertEquals("5", replacements.get(1).getPeriod());
+        assertEquals("5 - 8", replacements.get(2).getPeriod());
+    }
+
+    @Test
+    public void testDiff()
+    {
+        for (ReplacementTable table : tables)
+        {
+            assertTrue(TableDiff.between(table, table).isEmpty());
+        }
+
+        ReplacementTable before = parseRows(new String[][]{
+                {"1", "m", "r1", "fällt aus"}, {"3", "d", "r2", "---"}, {"5", "e", "r3", "---"}});
+        ReplacementTable after = parseRows(new String[][]{
+                {"5", "e", "r3", "---"}, {"1", "m", "r4", "fällt aus"}, {"6", "bio2", "r5", "---"}});
+        TableDiff diff = TableDiff.between(before, after);
+
+        assertFalse(diff.isEmpty());
+        // Room changed, so it's the same replacement
+        assertEquals(1, diff.getModifiedReplacements().size());
+        assertEquals("r1", diff.getModifiedReplacements().get(0).getBefore().getRoom());
+        assertEquals("r4", diff.getModifiedReplacements().get(0).getAfter().getRoom());
+        assertEquals(1, diff.getRemovedReplacements().size());
+        assertEquals("d", diff.getRemovedReplacements().get(0).getSubject());
+        assertEquals(1, diff.getAddedReplacements().size());
+        assertEquals("bio2", diff.getAddedReplacements().get(0).getSubject());
+        assertTrue(diff.getAddedMessages().isEmpty());
+    }
+
+    // Builds a table from rows of period, subject, room and text
+    private static ReplacementTable parseRows(String[][] rows)
+    {
+        StringBuilder html = new StringBuilder("<b>25.6. Montag</b>\n");
+        for (String[] row : rows)
+        {
+            html.append("<tr class='list odd'><td class=\"list\" align=\"center\">25.6.</td>")
+                    .append("<td class=\"list\" align=\"center\">11</td>")
+                    .append("<td class=\"list\" align=\"center\">").append(row[0]).append("</td>")
+                    .append("<td class=\"list\" align=\"center\">").append(row[1]).append("</td>")
+                    .append("<td class=\"list\" align=\"center\">").append(row[2]).append("</td>")
+                    .append("<td class=\"list\" align=\"center\">---</td>")
+                    .append("<td class=\"list\" align=\"center\">").append(row[3]).append("</td></tr>\n");
+        }
+
+        return ReplacementTable.parseFromHtml(html.toString());
+    }
+
+    @Test
+    public void testMetrics()
+    {
+        int[] counts = new int[3];
+        ReplacementTable.setMetrics(new Metrics()
+        {
+            @Override
+            public void recordParse(long durationNanos, int rows, int messages)
+            {
+                counts[0] += rows;
+            }
+
+            @Override
+            public void recordOptimize(int rowsBefore, int rowsAfter)
+            {
+                counts[1] += rowsBefore - rowsAfter;
+            }
+
+            @Override
+            public void recordFilter(long durationNanos, int rows, int matches)
+            {
+                counts[2] += matches;
+            }
+        });
+
+        try
+        {
+            String html = new PageGenerator.Builder().setRows(100).setRunLength(2).create().generate();
+            ReplacementTable table = ReplacementTable.parseFromHtml(html);
+            List<Replacement> all = table.getReplacements(new HashMap<>());
+
+            assertEquals(100, counts[0]);
+            assertEquals(50, counts[1]);
+            assertEquals(all.size(), counts[2]);
+        }
+        finally
+        {
+            ReplacementTable.setMetrics(null);
+        }
+
+        assertSame(Metrics.NONE, ReplacementTable.getMetrics());
+    }
+
+    @Test
+    public void testMerge()
+    {
+        ReplacementTable merged = ReplacementTable.merge(Arrays.asList(tables));
+        int replacements = 0;
+        int messages = 0;
+        int dates = 0;
+        for (ReplacementTable table : tables)
+        {
+            replacements += table.getReplacements().size();
+            messages += table.getMessages().size();
+            dates += table.getDates().length;
+        }
+
+        assertEquals(replacements, merged.getReplacements().size());
+        assertEquals(messages, merged.getMessages().size());
+        assertEquals(dates, merged.getDates().length);
+        assertEquals(dates, merged.getDays().length);
+        assertEquals(tables[0].getReplacements().get(0), merged.getReplacements().get(0));
+        assertFalse(merged.isStale());
+    }
+
+    @Test
+    public void testParsedDateAndPeriod()
+    {
+        Replacement replacement = tables[0].getReplacements().get(0);
+        LocalDate date = LocalDate.ofEpochDay(tables[0].getEpochDay(replacement));
+        assertEquals(22, date.getDayOfMonth());
+        assertEquals(6, date.getMonthValue());
+        assertEquals(5, replacement.getPeriodStart());
+        assertEquals(6, replacement.getPeriodEnd());
+
+        Replacement unknown = new Replacement.Builder().setDate("?").setPeriod("---").create();
+        assertEquals(Long.MIN_VALUE, tables[0].getEpochDay(unknown));
+        assertEquals(-1, unknown.getPeriodStart());
+
+        // Short data is accepted like before
+        Replacement shortData = Replacement.Builder.fromData(new String[]{"22.6."}).create();
+        assertEquals(-1, shortData.getPeriodStart());
+    }
+
+    @Test
+    public void testSerializedPeriod() throws Exception
+    {
+        Replacement replacement = tables[0].getReplacements().get(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(replacement);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            Replacement read = (Replacement) in.readObject();
+            assertEquals(replacement, read);
+            assertEquals(5, read.getPeriodStart());
+            assertEquals(6, read.getPeriodEnd());
+        }
+    }
+
+    @Test
+    public void testRangeQueries()
+    {
+        LocalDate friday = LocalDate.ofEpochDay(tables[0].getEpochDay(tables[0].getReplacements().get(0)));
+        assertEquals(3, tables[0].getReplacements(friday, friday).size());
+        assertEquals(0, tables[0].getReplacements(friday.plusDays(1), friday.plusDays(7)).size());
+        assertEquals(2, tables[0].getReplacements(friday, 2).size());
+        assertEquals(1, tables[0].getReplacements(friday, 6).size());
+        assertEquals(0, tables[0].getReplacements(friday, 3).size());
+        assertEquals(3, tables[0].getReplacements(friday, friday, 2, 5).size());
+
+        ReplacementTable merged = ReplacementTable.merge(Arrays.asList(tables));
+        LocalDate monday = LocalDate.ofEpochDay(tables[1].getEpochDay(tables[1].getReplacements().get(0)));
+        assertEquals(5, merged.getReplacements(friday, monday).size());
+        assertEquals(1, merged.getReplacements(monday, monday, 3, 3).size());
+    }
+
+    @Test
+    public void testLazyTable() throws Exception
+    {
+        for (int i = 0; i < EXAMPLE_COUNT; i++)
+        {
+            String html = Utils.readFileToEnd(getClass().getResource(String.format("/example%d.html", i + 1)).getFile());
+            ReplacementTable lazy = ReplacementTable.parseFromHtmlLazy(html);
+
+            assertArrayEquals(tables[i].getDates(), lazy.getDates());
+            assertArrayEquals(tables[i].getDays(), lazy.getDays());
+            assertEquals(tables[i].getReplacements(), lazy.getReplacements());
+            assertEquals(tables[i].getMessages(), lazy.getMessages());
+        }
+    }
+
+    @Test
+    public void testLazyTableConcurrentAccess() throws Exception
+    {
+        String html = Utils.readFileToEnd(getClass().getResource("/example1.html").getFile());
+        ReplacementTable lazy = ReplacementTable.parseFromHtmlLazy(html);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<List<Replacement>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(executor.submit(() -> lazy.getReplacements(new HashMap<>())));
+            }
+
+            for (Future<List<Replacement>> result : results)
+            {
+                assertEquals(tables[0].getReplacements(), result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReturnedReplacementsCanBeChanged()
+    {
+        List<Replacement> replacements = tables[0].getReplacements();
+        int size = replacements.size();
+        replacements.clear();
+
+        assertEquals(size, tables[0].getReplacements().size());
+        assertEquals(size, tables[0].getReplacements(new HashMap<>()).size());
+    }
+
+    @Test
+    public void testLastTablesAreBoundedPerGrade()
+    {
+        List<String> evicted = new ArrayList<>();
+        LastTables lastTables = new LastTables(2, evicted::add);
+        Grade a = Grade.parse("5a");
+        Grade b = Grade.parse("5b");
+
+        lastTables.put(a, "week1", tables[0]);
+        lastTables.put(a, "week2", tables[1]);
+        lastTables.put(b, "week1", tables[2]);
+        // Use week1 of a again, so week2 is the least recently used table of a
+        assertSame(tables[0], lastTables.get(a, "week1"));
+        lastTables.put(a, "week3", tables[2]);
+
+        assertEquals(Collections.singletonList("week2"), evicted);
+        assertNull(lastTables.get(a, "week2"));
+        assertSame(tables[0], lastTables.get(a, "week1"));
+        assertSame(tables[2], lastTables.get(b, "week1"));
+        assertEquals(3, lastTables.size());
+    }
+
+    // Transport which serves the pages in order with the ETags "0", "1", ... and answers with
+    // "304 Not Modified" if the request contains the ETag of the current page
+    private static HttpTransport pages(String... pages)
+    {
+        AtomicInteger requests = new AtomicInteger();
+        return (url, headers) ->
+        {
+            int page = Math.min(requests.getAndIncrement(), pages.length - 1);
+            String eTag = String.valueOf(page);
+            boolean notModified = eTag.equals(headers.get("If-None-Match"));
+            return new HttpTransport.Response()
+            {
+                @Override
+                public int getStatusCode()
+                {
+                    return notModified ? 304 : 200;
+                }
+
+                @Override
+                public String getHeader(String name)
+                {
+                    return "ETag".equals(name) ? eTag : null;
+                }
+
+                @Override
+                public InputStream getBody()
+                {
+                    return new ByteArrayInputStream(pages[page].getBytes(StandardCharsets.UTF_8));
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        };
+    }
+
+    // Downloads a good page, a page of another grade and the same page again, which is answered with 304
+    private void testRejectedPageIsDownloadedAgain(int plusWeeks, boolean lazy) throws IOException
+    {
+        String good = Utils.readFileToEnd(getClass().getResource("/example1.html").getFile());
+        String otherGrade = Utils.readFileToEnd(getClass().getResource("/example3.html").getFile());
+        Grade grade = Grade.parse("11");
+        ReplacementTable.setTransport(pages(good, otherGrade));
+        try
+        {
+            assertNotNull(ReplacementTable.downloadTable(grade, plusWeeks, lazy));
+            for (int i = 0; i < 2; i++)
+            {
+                try
+                {
+                    // Without the validators of the rejected page, the server sends the page again
+                    ReplacementTable.downloadTable(grade, plusWeeks, lazy);
+                    fail();
+                }
+                catch (WebException e)
+                {
+                    assertEquals("Corrupted data", e.getMessage());
+                }
+            }
+        }
+        catch (WebException e)
+        {
+            throw new AssertionError(e);
+        }
+        finally
+        {
+            ReplacementTable.setTransport(new KeepAliveTransport());
+        }
+    }
+
+    @Test
+    public void testRejectedPageIsDownloadedAgain() throws IOException
+    {
+        testRejectedPageIsDownloadedAgain(20, false);
+    }
+
+    @Test
+    public void testRejectedLazyPageIsDownloadedAgain() throws IOException
+    {
+        testRejectedPageIsDownloadedAgain(21, true);
+    }
+
+    @Test
+    public void testDecemberTableQueriedInJanuary()
+    {
+        ArrayList<Replacement> replacements = new ArrayList<>();
+        replacements.add(new Replacement.Builder().setDate("19.12.").setPeriod("1").create());
+        replacements.add(new Replacement.Builder().setDate("5.1.").setPeriod("1 - 2").create());
+        Calendar downloadDate = new GregorianCalendar(2025, Calendar.DECEMBER, 19);
+        ReplacementTable table = new ReplacementTable(replacements, new ArrayList<>(), new String[0], new String[0],
+                null, downloadDate);
+
+        // The years don't depend on the current date, but on the download date
+        assertEquals(LocalDate.of(2025, 12, 19).toEpochDay(), table.getEpochDay(replacements.get(0)));
+        assertEquals(LocalDate.of(2026, 1, 5).toEpochDay(), table.getEpochDay(replacements.get(1)));
+        assertEquals(Arrays.asList(replacements.get(1)), table.getReplacements(LocalDate.of(2026, 1, 5), 2));
+        assertEquals(2, table.getReplacements(LocalDate.of(2025, 12, 1), LocalDate.of(2026, 1, 31)).size());
+        assertEquals(0, table.getReplacements(LocalDate.of(2025, 1, 5), LocalDate.of(2025, 1, 5)).size());
+    }
+
+    // Transport which serves the page of grade 11 after the delay and answers all other grades with 404.
+    // It counts the requests running at the same time.
+    private HttpTransport grade11(long delayMillis, AtomicInteger maxRunning) throws IOException
+    {
+        String page = Utils.readFileToEnd(getClass().getResource("/example1.html").getFile());
+        String webCode = Grade.parse("11").getWebCode();
+        AtomicInteger running = new AtomicInteger();
+        return (url, headers) ->
+        {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try
+            {
+                Thread.sleep(delayMillis);
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException(e);
+            }
+            finally
+            {
+                running.decrementAndGet();
+            }
+
+            boolean found = url.endsWith("w000" + webCode + ".htm");
+            return new HttpTransport.Response()
+            {
+                @Override
+                public int getStatusCode()
+                {
+                    return found ? 200 : 404;
+                }
+
+                @Override
+                public String getHeader(String name)
+                {
+                    return null;
+                }
+
+                @Override
+                public InputStream getBody()
+                {
+                    return new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8));
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        };
+    }
+
+    @Test
+    public void testDownloadAllReportsFailures() throws IOException
+    {
+        Grade found = Grade.parse("11");
+        Grade missing = Grade.parse("12");
+        ReplacementTable.setTransport(grade11(0, new AtomicInteger()));
+        try
+        {
+            DownloadResult result = ReplacementTable.downloadAll(Arrays.asList(found, missing),
+                    Arrays.asList(30, 31), 4);
+            assertEquals(2, result.getTables(found).size());
+            assertNotNull(result.getTable(found, 31));
+            assertNull(result.getFailure(found, 30));
+            assertNull(result.getTable(missing, 30));
+            assertTrue(result.getFailure(missing, 30).getMessage().contains("404"));
+            assertNotNull(result.getFailure(missing, 31));
+        }
+        finally
+        {
+            ReplacementTable.setTransport(new KeepAliveTransport());
+        }
+    }
+
+    @Test
+    public void testDownloadAllLimitsParallelism() throws IOException
+    {
+        AtomicInteger maxRunning = new AtomicInteger();
+        ReplacementTable.setTransport(grade11(20, maxRunning));
+        try
+        {
+            DownloadResult result = ReplacementTable.downloadRange(Collections.singletonList(Grade.parse("11")),
+                    32, 37, 2);
+            assertEquals(6, result.getTables(Grade.parse("11")).size());
+            assertTrue(maxRunning.get() <= 2);
+        }
+        finally
+        {
+            ReplacementTable.setTransport(new KeepAliveTransport());
+        }
+    }
+
+    @Test
+    public void testDownloadTableAsync() throws Exception
+    {
+        ReplacementTable.setTransport(grade11(0, new AtomicInteger()));
+        try
+        {
+            assertEquals(tables[0].getReplacements(),
+                    ReplacementTable.downloadTableAsync(Grade.parse("11"), 30).get().getReplacements());
+            try
+            {
+                ReplacementTable.downloadTableAsync(Grade.parse("12"), 30).get();
+                fail();
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof WebException);
+            }
+        }
+        finally
+        {
+            ReplacementTable.setTransport(new KeepAliveTransport());
+        }
+    }
+
+    @Test
+    public void testDownloadTablesAndMerge() throws Exception
+    {
+        ReplacementTable.setTransport(grade11(0, new AtomicInteger()));
+        try
+        {
+            List<ReplacementTable> weeks = ReplacementTable.downloadTables(Grade.parse("11"), 33, 35);
+            assertEquals(3, weeks.size());
+
+            ReplacementTable merged = ReplacementTable.merge(weeks);
+            int size = tables[0].getReplacements().size();
+            assertEquals(3 * size, merged.getReplacements().size());
+            assertEquals(3 * tables[0].getDates().length, merged.getDates().length);
+            assertEquals(Grade.parse("11"), merged.getGrade());
+            assertFalse(merged.isStale());
+
+            // Run the downloads on the calling thread, so none of them outlives the test after the first failure
+            ReplacementTable.setExecutor(Runnable::run);
+            try
+            {
+                ReplacementTable.downloadTables(Grade.parse("12"), 33, 35);
+                fail();
+            }
+            catch (WebException e)
+            {
+                assertTrue(e.getMessage().contains("404"));
+            }
+        }
+        finally
+        {
+            ReplacementTable.setExecutor(null);
+            ReplacementTable.setTransport(new KeepAliveTransport());
+        }
+    }
+
+    // Server of grade 11 which can be taken down, requests to it fail with an IOException
+    private HttpTransport unreliable(AtomicBoolean down, AtomicInteger requests) throws IOException
+    {
+        HttpTransport server = grade11(0, new AtomicInteger());
+        return (url, headers) ->
+        {
+            requests.incrementAndGet();
+            if (down.get())
+            {
+                throw new IOException("Connection refused");
+            }
+
+            return server.get(url, headers);
+        };
+    }
+
+    // Runs the test against the unreliable server, whose breaker opens after one failure
+    private void withUnreliableServer(long openMillis, Metrics metrics, UnreliableServerTest test) throws Exception
+    {
+        AtomicBoolean down = new AtomicBoolean();
+        AtomicInteger requests = new AtomicInteger();
+        ReplacementTable.setTransport(unreliable(down, requests));
+        ReplacementTable.setRetryPolicy(null);
+        ReplacementTable.setCircuitBreaker(1, openMillis, TimeUnit.MILLISECONDS);
+        ReplacementTable.setMetrics(metrics);
+        try
+        {
+            test.run(down, requests);
+        }
+        finally
+        {
+            ReplacementTable.setTransport(new KeepAliveTransport());
+            ReplacementTable.setRetryPolicy(RetryPolicy.DEFAULT);
+            ReplacementTable.setCircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+                    CircuitBreaker.DEFAULT_OPEN_MILLIS, TimeUnit.MILLISECONDS);
+            ReplacementTable.setMetrics(null);
+        }
+    }
+
+    private interface UnreliableServerTest
+    {
+        void run(AtomicBoolean down, AtomicInteger requests) throws Exception;
+    }
+
+    @Test
+    public void testStaleTableWhileCircuitIsOpen() throws Exception
+    {
+        Grade grade = Grade.parse("11");
+        withUnreliableServer(TimeUnit.HOURS.toMillis(1), null, (down, requests) ->
+        {
+            ReplacementTable fresh = ReplacementTable.downloadTable(grade, 38);
+            assertFalse(fresh.isStale());
+
+            // The failure opens the breaker
+            down.set(true);
+            try
+            {
+                ReplacementTable.downloadTable(grade, 38);
+                fail();
+            }
+            catch (WebException e)
+            {
+                assertFalse(e instanceof CircuitOpenException);
+                assertEquals(2, requests.get());
+            }
+
+            // The last table is returned without sending a request
+            ReplacementTable stale = ReplacementTable.downloadTable(grade, 38);
+            assertTrue(stale.isStale());
+            assertEquals(fresh.getReplacements(), stale.getReplacements());
+
+            // A week without last table fails immediately
+            try
+            {
+                ReplacementTable.downloadTable(grade, 51);
+                fail();
+            }
+            catch (CircuitOpenException e)
+            {
+                assertEquals(2, requests.get());
+            }
+        });
+    }
+
+    @Test
+    public void testProbeRevalidatesInBackground() throws Exception
+    {
+        Grade grade = Grade.parse("11");
+        BlockingQueue<WebException> failures = new LinkedBlockingQueue<>();
+        Metrics metrics = new Metrics()
+        {
+            @Override
+            public void recordRevalidationFailure(String url, WebException failure)
+            {
+                failures.add(failure);
+            }
+        };
+
+        withUnreliableServer(50, metrics, (down, requests) ->
+        {
+            ReplacementTable.downloadTable(grade, 39);
+            down.set(true);
+            try
+            {
+                ReplacementTable.downloadTable(grade, 39);
+                fail();
+            }
+            catch (WebException e)
+            {
+                // Breaker is open now
+            }
+
+            // The probe fails in the background, the caller gets the last table meanwhile
+            Thread.sleep(60);
+            assertTrue(ReplacementTable.downloadTable(grade, 39).isStale());
+            assertNotNull(failures.poll(5, TimeUnit.SECONDS));
+            assertEquals(3, requests.get());
+
+            // The next probe succeeds and closes the breaker, afterwards tables are fresh again
+            down.set(false);
+            Thread.sleep(60);
+            assertTrue(ReplacementTable.downloadTable(grade, 39).isStale());
+            ReplacementTable table = null;
+            for (int i = 0; i < 250 && (table == null || table.isStale()); i++)
+            {
+                Thread.sleep(20);
+                table = ReplacementTable.downloadTable(grade, 39);
+            }
+
+            assertFalse(table.isStale());
+            assertTrue(failures.isEmpty());
+        });
+    }
 }
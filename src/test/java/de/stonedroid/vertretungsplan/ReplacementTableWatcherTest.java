@@ -0,0 +1,109 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplacementTableWatcherTest
+{
+    private final AtomicInteger loads = new AtomicInteger();
+    private final AtomicInteger changes = new AtomicInteger();
+    private final CountDownLatch polled = new CountDownLatch(6);
+    private String html1;
+    private String html2;
+
+    @Before
+    public void init() throws IOException
+    {
+        html1 = Utils.readFileToEnd(getClass().getResource("/example1.html").getFile());
+        html2 = Utils.readFileToEnd(getClass().getResource("/example2.html").getFile());
+    }
+
+    // Loader whose page changes after the second download
+    private ReplacementTable load(Grade grade, int plusWeeks) throws WebException
+    {
+        try
+        {
+            int count = loads.incrementAndGet();
+            if (count == 4)
+            {
+                throw new WebException("Temporary failure");
+            }
+
+            return ReplacementTable.parseFromHtml(count <= 2 ? html1 : html2);
+        }
+        finally
+        {
+            polled.countDown();
+        }
+    }
+
+    @Test
+    public void testNotifiesOnlyOnChanges() throws InterruptedException
+    {
+        ReplacementTableWatcher watcher = new ReplacementTableWatcher(this::load, 5, TimeUnit.MILLISECONDS);
+        AtomicInteger failures = new AtomicInteger();
+        watcher.addListener(new OnTableChangedListener()
+        {
+            @Override
+            public void onChanged(Grade grade, int plusWeeks, ReplacementTable table, TableDiff diff)
+            {
+                changes.incrementAndGet();
+                assertFalse(diff.isEmpty());
+            }
+
+            @Override
+            public void onFailed(Grade grade, int plusWeeks, WebException exception)
+            {
+                failures.incrementAndGet();
+            }
+        });
+
+        Grade grade = Grade.parse("11");
+        watcher.watch(grade, 0);
+        watcher.start();
+        assertTrue(polled.await(5, TimeUnit.SECONDS));
+        watcher.stop();
+
+        // First snapshot is the starting point, the failure doesn't interrupt polling
+        assertEquals(1, changes.get());
+        assertEquals(1, failures.get());
+        assertNotNull(watcher.getSnapshot(grade, 0));
+        assertFalse(watcher.isRunning());
+    }
+
+    @Test
+    public void testAdaptiveSchedule()
+    {
+        AdaptivePollingSchedule schedule = new AdaptivePollingSchedule(1, 60, TimeUnit.MINUTES,
+                TimeZone.getTimeZone("UTC"));
+        Grade grade = Grade.parse("11");
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        long week = TimeUnit.DAYS.toMillis(7);
+        // 1970-01-05 was a monday
+        long monday = TimeUnit.DAYS.toMillis(4);
+
+        // Without history the minimum interval is used
+        assertEquals(minute, schedule.getInterval(grade, monday + 13 * 60 * minute));
+
+        // The plan was changed at 7:10 on three mondays
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(minute, schedule.nextDelay(grade, 0, monday + i * week + 430 * minute, true));
+        }
+
+        long nextMonday = monday + 3 * week;
+        assertEquals(minute, schedule.getInterval(grade, nextMonday + 425 * minute));
+        // Quiet on wednesday afternoon
+        assertEquals(60 * minute, schedule.getInterval(grade, nextMonday + 2 * 24 * 60 * minute + 13 * 60 * minute));
+        // The next poll before the window starts at the window's busier neighbour slot (6:30)
+        assertEquals(20 * minute, schedule.getInterval(grade, nextMonday + 370 * minute));
+    }
+}
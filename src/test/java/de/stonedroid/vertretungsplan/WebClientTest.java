@@ -0,0 +1,276 @@
+package de.stonedroid.vertretungsplan;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WebClientTest
+{
+    private final AtomicInteger requests = new AtomicInteger();
+
+    // Transport which answers with the given status codes in order, then with 200
+    private HttpTransport transport(int... statusCodes)
+    {
+        return (url, headers) ->
+        {
+            int request = requests.getAndIncrement();
+            int status = request < statusCodes.length ? statusCodes[request] : 200;
+            return new HttpTransport.Response()
+            {
+                @Override
+                public int getStatusCode()
+                {
+                    return status;
+                }
+
+                @Override
+                public String getHeader(String name)
+                {
+                    return null;
+                }
+
+                @Override
+                public InputStream getBody()
+                {
+                    return new ByteArrayInputStream("ok".getBytes(StandardCharsets.UTF_8));
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        };
+    }
+
+    private WebClient client(HttpTransport transport, int maxAttempts)
+    {
+        WebClient client = new WebClient();
+        client.setTransport(transport);
+        client.setRetryPolicy(new RetryPolicy.Builder()
+                .setMaxAttempts(maxAttempts)
+                .setBackoff(1, 5, TimeUnit.MILLISECONDS)
+                .create());
+        return client;
+    }
+
+    @Test
+    public void testRetriesTransientErrors() throws WebException
+    {
+        WebClient client = client(transport(503, 500), 3);
+        assertEquals("ok", client.downloadString("http://example.com"));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts()
+    {
+        WebClient client = client(transport(503, 503, 503), 2);
+        try
+        {
+            client.downloadString("http://example.com");
+            fail();
+        }
+        catch (WebException e)
+        {
+            assertEquals(2, requests.get());
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors()
+    {
+        WebClient client = client(transport(404), 3);
+        try
+        {
+            client.downloadString("http://example.com");
+            fail();
+        }
+        catch (WebException e)
+        {
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void testRetriesIoErrors() throws WebException
+    {
+        HttpTransport ok = transport();
+        WebClient client = client((url, headers) ->
+        {
+            if (requests.get() == 0)
+            {
+                requests.incrementAndGet();
+                throw new IOException("Connection reset");
+            }
+
+            return ok.get(url, headers);
+        }, 3);
+
+        assertEquals("ok", client.downloadString("http://example.com"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testKeepsCauseOfLastFailure()
+    {
+        WebClient client = client((url, headers) ->
+        {
+            requests.incrementAndGet();
+            throw new SocketTimeoutException("Read timed out");
+        }, 2);
+
+        try
+        {
+            client.downloadString("http://example.com");
+            fail();
+        }
+        catch (WebException e)
+        {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertEquals(2, requests.get());
+        }
+    }
+
+    @Test
+    public void testFailsFastWhenCircuitIsOpen()
+    {
+        WebClient client = client(transport(503, 503), 1);
+        client.setCircuitBreaker(2, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 3; i++)
+        {
+            try
+            {
+                client.downloadString("http://example.com/page");
+                fail();
+            }
+            catch (WebException e)
+            {
+                assertEquals(i == 2, e instanceof CircuitOpenException);
+            }
+        }
+
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testTimeoutsAreLimitedByDeadline() throws WebException
+    {
+        AtomicInteger timeout = new AtomicInteger(-1);
+        HttpTransport ok = transport();
+        WebClient client = client(new HttpTransport()
+        {
+            @Override
+            public Response get(String url, Map<String, String> headers) throws IOException
+            {
+                throw new AssertionError("Timeout limit ignored");
+            }
+
+            @Override
+            public Response get(String url, Map<String, String> headers, int timeoutMillis) throws IOException
+            {
+                timeout.set(timeoutMillis);
+                return ok.get(url, headers);
+            }
+        }, 1);
+
+        assertEquals("ok", client.downloadString("http://example.com"));
+        assertTrue(timeout.get() > 0 && timeout.get() <= TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Test
+    public void testSlowBodyFailsAtDeadline()
+    {
+        WebClient client = new WebClient();
+        client.setRetryPolicy(new RetryPolicy.Builder()
+                .setBackoff(1, 5, TimeUnit.MILLISECONDS)
+                .setDeadline(100, TimeUnit.MILLISECONDS)
+                .create());
+        // Body which trickles in one byte every 20 ms and never ends
+        client.setTransport((url, headers) ->
+        {
+            HttpTransport.Response response = transport().get(url, headers);
+            return new HttpTransport.Response()
+            {
+                @Override
+                public int getStatusCode() throws IOException
+                {
+                    return response.getStatusCode();
+                }
+
+                @Override
+                public String getHeader(String name)
+                {
+                    return null;
+                }
+
+                @Override
+                public InputStream getBody()
+                {
+                    return new InputStream()
+                    {
+                        @Override
+                        public int read() throws IOException
+                        {
+                            try
+                            {
+                                Thread.sleep(20);
+                            }
+                            catch (InterruptedException e)
+                            {
+                                throw new IOException(e);
+                            }
+
+                            return 'a';
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException
+                        {
+                            b[off] = (byte) read();
+                            return 1;
+                        }
+                    };
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+        });
+
+        long start = System.nanoTime();
+        try
+        {
+            client.downloadString("http://example.com");
+            fail();
+        }
+        catch (WebException e)
+        {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    public void testBackoffIsBounded()
+    {
+        RetryPolicy policy = new RetryPolicy.Builder().setBackoff(100, 400, TimeUnit.MILLISECONDS).create();
+        for (int retry = 1; retry < 10; retry++)
+        {
+            long backoff = policy.getBackoffMillis(retry);
+            assertTrue(backoff >= 0 && backoff <= 400);
+        }
+    }
+}